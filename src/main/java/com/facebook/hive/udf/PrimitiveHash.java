@@ -0,0 +1,68 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.Hashing;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * Hashes primitive values for the sketching functions (cms_agg, hll_agg,
+ * bloom_agg, minhash, ...), so that a value hashes the same way whichever
+ * primitive type it arrives as.  Integers of every width, and FLOAT, DOUBLE
+ * and DECIMAL values holding an integer, hash as the same long; other numbers
+ * hash as doubles; strings hash as their UTF-8 bytes and everything else as
+ * its string form.
+ */
+public final class PrimitiveHash {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private PrimitiveHash() {
+    // prevent instantiation
+  }
+
+  public static long hash64(Object o, PrimitiveObjectInspector oi, long seed) {
+    switch (oi.getPrimitiveCategory()) {
+    case BOOLEAN:
+      return Hashing.hash64(PrimitiveObjectInspectorUtils.getBoolean(o, oi) ? 1L : 0L, seed);
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return Hashing.hash64(PrimitiveObjectInspectorUtils.getLong(o, oi), seed);
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return hashDouble(PrimitiveObjectInspectorUtils.getDouble(o, oi), seed);
+    case STRING:
+      StringObjectInspector soi = (StringObjectInspector) oi;
+      if (soi.preferWritable()) {
+        Text text = soi.getPrimitiveWritableObject(o);
+        return Hashing.hash64(text.getBytes(), 0, text.getLength(), seed);
+      }
+      return hashBytes(soi.getPrimitiveJavaObject(o).getBytes(UTF8), seed);
+    case BINARY:
+      BytesWritable bytes = ((BinaryObjectInspector) oi).getPrimitiveWritableObject(o);
+      return Hashing.hash64(bytes.getBytes(), 0, bytes.getLength(), seed);
+    default:
+      return hashBytes(PrimitiveObjectInspectorUtils.getString(o, oi).getBytes(UTF8), seed);
+    }
+  }
+
+  private static long hashDouble(double d, long seed) {
+    if (d == Math.rint(d) && Math.abs(d) < 0x1p63) {
+      return Hashing.hash64((long) d, seed);
+    }
+    // doubleToLongBits gives every NaN the same bits.
+    return Hashing.hash64(Double.doubleToLongBits(d), seed);
+  }
+
+  private static long hashBytes(byte[] bytes, long seed) {
+    return Hashing.hash64(bytes, 0, bytes.length, seed);
+  }
+}
@@ -0,0 +1,232 @@
+package com.facebook.hive.udf;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinarySerDe;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters.Converter;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
+
+
+/**
+ * An append-only list of standard Hive objects that keeps its first
+ * memoryLimit elements in an ArrayList and appends the rest to a temporary
+ * local file, each as a length-prefixed LazyBinary record.  The list can be
+ * returned from an aggregation as is: elements on disk are read back one at a
+ * time as they are asked for, so reading the list in order, as Hive's
+ * serializers do, never holds more than one spilled element in memory.
+ * Reading backwards reopens the file.
+ *
+ * Spilled records are gathered in memory and appended to the file a batch of
+ * SPILL_BATCH_BYTES at a time, so a list only holds the file open while it
+ * writes a batch or reads the list, however many lists are spilling at once.
+ *
+ * clear() deletes the file.  The elements must be standard objects of the
+ * ObjectInspector the list was created with.
+ */
+public class SpillableList extends AbstractList<Object> {
+  public static final int SPILL_BATCH_BYTES = 65536;
+
+  private final ObjectInspector elementOI;
+  private final int memoryLimit;
+  private final ArrayList<Object> memory = new ArrayList<Object>();
+
+  // The spilled elements; the serde is only set up once something spills.
+  private LazyBinarySerDe serde;
+  private StructObjectInspector rowOI;
+  private StructObjectInspector serializedOI;
+  private StructField serializedField;
+  private Converter converter;
+  private final Object[] row = new Object[1];
+  private File file;
+  // Spilled records not yet written to file.
+  private ByteArrayOutputStream pendingBytes;
+  private DataOutputStream pending;
+  private int spilled = 0;
+
+  private DataInputStream in;
+  private int nextIndex;
+  private int currentIndex = -1;
+  private Object current;
+  private BytesWritable record;
+
+  public SpillableList(ObjectInspector elementOI, int memoryLimit) {
+    this.elementOI = elementOI;
+    this.memoryLimit = memoryLimit;
+  }
+
+  @Override
+  public boolean add(Object o) {
+    if (memory.size() < memoryLimit) {
+      return memory.add(o);
+    }
+    try {
+      if (serde == null) {
+        initSerDe();
+      }
+      if (pending == null) {
+        pendingBytes = new ByteArrayOutputStream();
+        pending = new DataOutputStream(pendingBytes);
+      }
+      row[0] = o;
+      BytesWritable bytes = (BytesWritable) serde.serialize(row, rowOI);
+      pending.writeInt(bytes.getLength());
+      pending.write(bytes.getBytes(), 0, bytes.getLength());
+      if (pendingBytes.size() >= SPILL_BATCH_BYTES) {
+        flush();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Could not spill to " + file, e);
+    } catch (SerDeException e) {
+      throw new RuntimeException("Could not spill to " + file, e);
+    }
+    ++spilled;
+    return true;
+  }
+
+  private void initSerDe() throws SerDeException {
+    serde = new LazyBinarySerDe();
+    Properties properties = new Properties();
+    properties.setProperty(serdeConstants.LIST_COLUMNS, "element");
+    properties.setProperty(serdeConstants.LIST_COLUMN_TYPES,
+        TypeInfoUtils.getTypeInfoFromObjectInspector(elementOI).getTypeName());
+    serde.initialize(new Configuration(), properties);
+    rowOI = ObjectInspectorFactory.getStandardStructObjectInspector(
+        Collections.singletonList("element"),
+        Collections.singletonList(elementOI));
+    serializedOI = (StructObjectInspector) serde.getObjectInspector();
+    serializedField = serializedOI.getAllStructFieldRefs().get(0);
+    converter = ObjectInspectorConverters.getConverter(
+        serializedField.getFieldObjectInspector(), elementOI);
+    record = new BytesWritable();
+  }
+
+  /** Append the pending records to the file, and close it again. */
+  private void flush() throws IOException {
+    if (pending == null) {
+      return;
+    }
+    if (file == null) {
+      file = File.createTempFile("spill", ".bin");
+    }
+    FileOutputStream out = new FileOutputStream(file, true);
+    try {
+      pendingBytes.writeTo(out);
+    } finally {
+      out.close();
+    }
+    // Only lists which are still spilling keep a buffer.
+    pendingBytes = null;
+    pending = null;
+  }
+
+  @Override
+  public Object get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    if (index < memory.size()) {
+      return memory.get(index);
+    }
+    index -= memory.size();
+    if (index == currentIndex) {
+      return current;
+    }
+    try {
+      flush();
+      if (in == null || index < nextIndex) {
+        openForRead();
+      }
+      while (nextIndex < index) {
+        in.skipBytes(in.readInt());
+        ++nextIndex;
+      }
+      int length = in.readInt();
+      record.setSize(length);
+      in.readFully(record.getBytes(), 0, length);
+      Object struct = serde.deserialize(record);
+      // The converter may reuse its output, so the element is copied too.
+      current = ObjectInspectorUtils.copyToStandardObject(
+          converter.convert(serializedOI.getStructFieldData(struct, serializedField)),
+          elementOI);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not read back " + file, e);
+    } catch (SerDeException e) {
+      throw new RuntimeException("Could not read back " + file, e);
+    }
+    currentIndex = index;
+    ++nextIndex;
+    if (nextIndex == spilled) {
+      // Done reading; reading again reopens the file.
+      closeInput();
+    }
+    return current;
+  }
+
+  private void openForRead() throws IOException {
+    closeReader();
+    in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 65536));
+    nextIndex = 0;
+  }
+
+  private void closeInput() {
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Nothing more to read from it.
+      }
+      in = null;
+    }
+  }
+
+  private void closeReader() {
+    closeInput();
+    currentIndex = -1;
+    current = null;
+  }
+
+  @Override
+  public int size() {
+    return memory.size() + spilled;
+  }
+
+  /** The number of elements written to disk. */
+  public int spilledSize() {
+    return spilled;
+  }
+
+  @Override
+  public void clear() {
+    memory.clear();
+    closeReader();
+    pendingBytes = null;
+    pending = null;
+    spilled = 0;
+    if (file != null) {
+      file.delete();
+      file = null;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.BloomFilter;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+
+/**
+ * Builds a Bloom filter (see lib.BloomFilter) of the values of x, for testing
+ * membership with BLOOM_CONTAINS.  This is meant for semi-join pruning: build
+ * the filter over the join keys of the small side, then drop the rows of the
+ * large side whose keys it does not contain before shuffling them.  The filter
+ * takes about -expected_n * ln(fpp) / ln(2)^2 bits; it never misses a value
+ * that was added, and reports one that was not with probability about fpp as
+ * long as there are at most expected_n distinct values.
+ *
+ * NULL values are ignored.  x may be of any primitive type; see
+ * PrimitiveHash for which values are considered equal.
+ */
+@Description(name = "bloom_agg",
+    value = "_FUNC_(x, expected_n, fpp) - Returns a Bloom filter of the values" +
+            " of x, for use with bloom_contains.")
+public class UDAFBloomFilter extends AbstractGenericUDAFResolver {
+  // Fixes the hash functions of every filter.
+  static final long SEED = 0x626c6dL;
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 3) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Exactly three arguments are expected.");
+    }
+    if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be of a primitive type.");
+    }
+    if (!isNumeric(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "expected_n must be a number.");
+    }
+    if (!isNumeric(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "fpp must be a number.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isNumeric(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is the serialized filter, as is the result.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector xOI;
+    private PrimitiveObjectInspector expectedNOI;
+    private PrimitiveObjectInspector fppOI;
+
+    // For PARTIAL2 and FINAL.
+    private BinaryObjectInspector partialOI;
+
+    public static class FilterBuffer implements AggregationBuffer {
+      BloomFilter filter;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        xOI = (PrimitiveObjectInspector) parameters[0];
+        expectedNOI = (PrimitiveObjectInspector) parameters[1];
+        fppOI = (PrimitiveObjectInspector) parameters[2];
+      } else {
+        partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new FilterBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((FilterBuffer) agg).filter = null;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      FilterBuffer myAgg = (FilterBuffer) agg;
+      if (myAgg.filter == null) {
+        if (parameters[1] == null || parameters[2] == null) {
+          return;
+        }
+        try {
+          myAgg.filter = BloomFilter.withAccuracy(
+              PrimitiveObjectInspectorUtils.getLong(parameters[1], expectedNOI),
+              PrimitiveObjectInspectorUtils.getDouble(parameters[2], fppOI));
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      }
+      if (parameters[0] != null) {
+        myAgg.filter.add(PrimitiveHash.hash64(parameters[0], xOI, SEED));
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      FilterBuffer myAgg = (FilterBuffer) agg;
+      BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+      try {
+        if (myAgg.filter == null) {
+          myAgg.filter = BloomFilter.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+        } else {
+          myAgg.filter.addBytes(bytes.getBytes(), 0, bytes.getLength());
+        }
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      FilterBuffer myAgg = (FilterBuffer) agg;
+      if (myAgg.filter == null) {
+        return null;
+      }
+      return new BytesWritable(myAgg.filter.toBytes());
+    }
+  }
+}
@@ -18,74 +18,222 @@
 
 package com.facebook.hive.udf;
 
+import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Aggregate the values into an array.  NULL values are ignored.
+ *
+ * With max_elements, each group stops collecting once it holds that many
+ * values, so a runaway group cannot exhaust the heap; which values are kept
+ * is then arbitrary.  If spill is also given and true, nothing is dropped:
+ * the first max_elements values of a group are held in memory and the rest
+ * are written to a local temporary file (see SpillableList) and streamed
+ * back when the result is written.  max_elements and spill must be
+ * constants.
+ */
+@Description(name = "collect",
+             value = "_FUNC_(x[, max_elements[, spill]]) - aggregate the values of x into an array")
 public final class UDAFCollect extends AbstractGenericUDAFResolver {
 
   public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
     throws SemanticException {
-    if (parameters.length != 1) {
+    if (parameters.length < 1 || parameters.length > 3) {
       throw new UDFArgumentTypeException(parameters.length - 1,
-        "Exactly one argument is expected.");
+        "One to three arguments are expected.");
+    }
+    if (parameters.length > 1 && !isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+        "max_elements must be an integer.");
     }
+    if (parameters.length > 2 &&
+        (parameters[2].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+         ((PrimitiveTypeInfo) parameters[2]).getPrimitiveCategory() !=
+         PrimitiveObjectInspector.PrimitiveCategory.BOOLEAN)) {
+      throw new UDFArgumentTypeException(2,
+        "spill must be a boolean.");
+    }
+
+    return new GenericUDAFCollectEvaluator();
+  }
 
+  @Override
+  public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+    throws SemanticException {
+    getEvaluator(info.getParameters());
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    for (int ii = 1; ii < parameters.length; ++ii) {
+      if (!(parameters[ii] instanceof ConstantObjectInspector)) {
+        throw new UDFArgumentTypeException(ii,
+          (ii == 1 ? "max_elements" : "spill") + " must be a constant.");
+      }
+    }
+    if (parameters.length > 1) {
+      Object max = ((ConstantObjectInspector) parameters[1]).getWritableConstantValue();
+      long max_elements = max == null ? 0 :
+          PrimitiveObjectInspectorUtils.getLong(max, (PrimitiveObjectInspector) parameters[1]);
+      if (max_elements <= 0 || max_elements > Integer.MAX_VALUE) {
+        throw new UDFArgumentTypeException(1,
+          "max_elements must be a positive int.");
+      }
+    }
     return new GenericUDAFCollectEvaluator();
   }
 
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
 
+  /**
+   * The partial aggregation is a struct of max_elements, spill and the array
+   * of values collected so far.
+   */
   public static class GenericUDAFCollectEvaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.  These are read from the arguments in init(),
+    // as Hive creates evaluators with the default constructor; in PARTIAL2
+    // and FINAL each buffer takes them from the first partial it merges.
     ObjectInspector inputOI;
+    private int maxElements;
+    private boolean spill;
+
+    // For PARTIAL2 and FINAL.
+    StructObjectInspector partialOI;
+    StructField partialMaxElementsField;
+    StructField partialSpillField;
+    StructField partialElementsField;
+    PrimitiveObjectInspector partialMaxElementsOI;
+    PrimitiveObjectInspector partialSpillOI;
+    ListObjectInspector partialElementsOI;
+
+    ObjectInspector elementOI;
     ObjectInspector outputOI;
 
     @Override
     public ObjectInspector init(Mode m, ObjectInspector[] parameters)
       throws HiveException {
-      assert(parameters.length == 1);
       super.init(m, parameters);
-      inputOI = parameters[0];
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        inputOI = parameters[0];
+        elementOI = ObjectInspectorUtils.getStandardObjectInspector(inputOI);
+        maxElements = Integer.MAX_VALUE;
+        spill = false;
+        if (parameters.length > 1) {
+          maxElements = PrimitiveObjectInspectorUtils.getInt(
+            ((ConstantObjectInspector) parameters[1]).getWritableConstantValue(),
+            (PrimitiveObjectInspector) parameters[1]);
+        }
+        if (parameters.length > 2) {
+          Object value = ((ConstantObjectInspector) parameters[2]).getWritableConstantValue();
+          spill = value != null &&
+              PrimitiveObjectInspectorUtils.getBoolean(value, (PrimitiveObjectInspector) parameters[2]);
+        }
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialMaxElementsField = partialOI.getStructFieldRef("max_elements");
+        partialSpillField = partialOI.getStructFieldRef("spill");
+        partialElementsField = partialOI.getStructFieldRef("elements");
+        partialMaxElementsOI = (PrimitiveObjectInspector) partialMaxElementsField.getFieldObjectInspector();
+        partialSpillOI = (PrimitiveObjectInspector) partialSpillField.getFieldObjectInspector();
+        partialElementsOI = (ListObjectInspector) partialElementsField.getFieldObjectInspector();
+        elementOI = ObjectInspectorUtils.getStandardObjectInspector(
+          partialElementsOI.getListElementObjectInspector());
+      }
 
       // This should be list of the inputOI.
-      outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-        ObjectInspectorUtils.getStandardObjectInspector(inputOI));
+      outputOI = ObjectInspectorFactory.getStandardListObjectInspector(elementOI);
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("max_elements");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("spill");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableBooleanObjectInspector);
+        fieldNames.add("elements");
+        fieldOIs.add(outputOI);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      }
       return outputOI;
     }
 
     public static class UDAFCollectState implements AggregationBuffer {
-      private LinkedList<Object> elements;
+      private List<Object> elements;
+      private int maxElements;
+      private boolean spill;
     }
 
     @Override
     public AggregationBuffer getNewAggregationBuffer()
       throws HiveException {
-      UDAFCollectState myAgg = new UDAFCollectState();
-      myAgg.elements = new LinkedList<Object>();
-      return myAgg;
+      return new UDAFCollectState();
     }
 
     @Override
     public void reset(AggregationBuffer agg)
       throws HiveException {
       UDAFCollectState myAgg = (UDAFCollectState)agg;
-      myAgg.elements.clear();
+      if (myAgg.elements != null) {
+        myAgg.elements.clear();
+        myAgg.elements = null;
+      }
     }
 
+    private void start(UDAFCollectState myAgg, int maxElements, boolean spill) {
+      myAgg.maxElements = maxElements;
+      myAgg.spill = spill;
+      if (spill) {
+        myAgg.elements = new SpillableList(elementOI, maxElements);
+      } else {
+        myAgg.elements = new ArrayList<Object>();
+      }
+    }
+
+    private boolean isFull(UDAFCollectState myAgg) {
+      return !myAgg.spill && myAgg.elements.size() >= myAgg.maxElements;
+    }
 
     @Override
     public void iterate(AggregationBuffer agg, Object[] parameters)
       throws HiveException {
       UDAFCollectState myAgg = (UDAFCollectState)agg;
-      assert(parameters.length == 1);
-      if (parameters[0] != null) {
+      if (myAgg.elements == null) {
+        start(myAgg, maxElements, spill);
+      }
+      if (parameters[0] != null && !isFull(myAgg)) {
         Object pCopy = ObjectInspectorUtils.copyToStandardObject(parameters[0],
                                                                  inputOI);
         myAgg.elements.add(pCopy);
@@ -96,11 +244,14 @@ public final class UDAFCollect extends AbstractGenericUDAFResolver {
     public Object terminatePartial(AggregationBuffer agg)
       throws HiveException {
       UDAFCollectState myAgg = (UDAFCollectState)agg;
-      if (myAgg.elements.size() == 0) {
+      if (myAgg.elements == null || myAgg.elements.size() == 0) {
         return null;
-      } else {
-        return myAgg;
       }
+      ArrayList<Object> partial = new ArrayList<Object>(3);
+      partial.add(new IntWritable(myAgg.maxElements));
+      partial.add(new BooleanWritable(myAgg.spill));
+      partial.add(terminate(agg));
+      return partial;
     }
 
     @Override
@@ -108,8 +259,22 @@ public final class UDAFCollect extends AbstractGenericUDAFResolver {
       throws HiveException {
       if (partial != null) {
         UDAFCollectState myAgg = (UDAFCollectState)agg;
-        UDAFCollectState myPartial = (UDAFCollectState)partial;
-        myAgg.elements.addAll(myPartial.elements);
+        if (myAgg.elements == null) {
+          start(myAgg,
+                PrimitiveObjectInspectorUtils.getInt(
+                  partialOI.getStructFieldData(partial, partialMaxElementsField),
+                  partialMaxElementsOI),
+                PrimitiveObjectInspectorUtils.getBoolean(
+                  partialOI.getStructFieldData(partial, partialSpillField),
+                  partialSpillOI));
+        }
+        Object elements = partialOI.getStructFieldData(partial, partialElementsField);
+        ObjectInspector partialElementOI = partialElementsOI.getListElementObjectInspector();
+        int length = partialElementsOI.getListLength(elements);
+        for (int ii = 0; ii < length && !isFull(myAgg); ++ii) {
+          myAgg.elements.add(ObjectInspectorUtils.copyToStandardObject(
+            partialElementsOI.getListElement(elements, ii), partialElementOI));
+        }
       }
     }
 
@@ -117,6 +282,9 @@ public final class UDAFCollect extends AbstractGenericUDAFResolver {
     public Object terminate(AggregationBuffer agg)
       throws HiveException {
       UDAFCollectState myAgg = (UDAFCollectState)agg;
+      if (myAgg.elements == null) {
+        return new ArrayList<Object>();
+      }
       return myAgg.elements;
     }
   }
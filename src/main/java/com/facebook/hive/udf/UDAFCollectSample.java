@@ -0,0 +1,263 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.ReservoirSample;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * Returns a uniform random sample of N of the values of x, without
+ * replacement, or all of them if there are fewer than N.  Unlike
+ * COLLECT followed by SAMPLE, each group only ever holds N values (see
+ * lib.ReservoirSample), so the group is never materialized.  NULL values are
+ * ignored.  The sample is in no particular order.
+ *
+ * If seed is given (it must be a constant) the random numbers are seeded
+ * with it, so the same input read in the same order gives the same sample.
+ *
+ * The partial aggregation is a struct of N, the seed, the number of values
+ * sampled from and the sample, which is all merge() needs to keep the sample
+ * uniform.
+ */
+@Description(name = "collect_sample",
+    value = "_FUNC_(x, N[, seed]) - Returns a random sample of N values of x.")
+public class UDAFCollectSample extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 2 && parameters.length != 3) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Two or three arguments are expected.");
+    }
+    if (!isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "N must be an integer.");
+    }
+    if (parameters.length == 3 && !isIntegral(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "The seed must be an integer.");
+    }
+    return new Evaluator();
+  }
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+    throws SemanticException {
+    getEvaluator(info.getParameters());
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    if (parameters.length == 3 && !(parameters[2] instanceof ConstantObjectInspector)) {
+      throw new UDFArgumentTypeException(2,
+          "The seed must be a constant.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of N, the seed (NULL if none was
+   * given), the number of values seen and the sample.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // Read from the arguments in init(), as Hive creates evaluators with the
+    // default constructor, or in PARTIAL2 and FINAL from the first partial.
+    private LongWritable seed;
+
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector nOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialNField;
+    private StructField partialSeedField;
+    private StructField partialCountField;
+    private StructField partialItemsField;
+    private ListObjectInspector partialItemsOI;
+
+    // The input value, or the partial's value, and its standard form.
+    private ObjectInspector xOI;
+    private ObjectInspector standardXOI;
+    private transient Random random;
+
+    public static class SampleBuffer implements AggregationBuffer {
+      ReservoirSample<Object> sample;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+      seed = null;
+      random = null;
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        xOI = parameters[0];
+        nOI = (PrimitiveObjectInspector) parameters[1];
+        if (parameters.length == 3) {
+          Object value = ((ConstantObjectInspector) parameters[2]).getWritableConstantValue();
+          if (value != null) {
+            seed = new LongWritable(PrimitiveObjectInspectorUtils.getLong(
+                value, (PrimitiveObjectInspector) parameters[2]));
+          }
+        }
+        random = seed == null ? new Random() : new Random(seed.get());
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialNField = partialOI.getStructFieldRef("n");
+        partialSeedField = partialOI.getStructFieldRef("seed");
+        partialCountField = partialOI.getStructFieldRef("count");
+        partialItemsField = partialOI.getStructFieldRef("items");
+        partialItemsOI = (ListObjectInspector) partialItemsField.getFieldObjectInspector();
+        nOI = (PrimitiveObjectInspector) partialNField.getFieldObjectInspector();
+        xOI = partialItemsOI.getListElementObjectInspector();
+      }
+      standardXOI = ObjectInspectorUtils.getStandardObjectInspector(xOI);
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("n");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("seed");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldNames.add("count");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldNames.add("items");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(standardXOI));
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else {
+        return ObjectInspectorFactory.getStandardListObjectInspector(standardXOI);
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new SampleBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((SampleBuffer) agg).sample = null;
+    }
+
+    private void initSample(SampleBuffer myAgg, int N) throws HiveException {
+      try {
+        myAgg.sample = new ReservoirSample<Object>(N, random);
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      SampleBuffer myAgg = (SampleBuffer) agg;
+      if (myAgg.sample == null) {
+        if (parameters[1] == null) {
+          return;
+        }
+        initSample(myAgg, PrimitiveObjectInspectorUtils.getInt(parameters[1], nOI));
+      }
+      if (parameters[0] != null) {
+        myAgg.sample.offer(ObjectInspectorUtils.copyToStandardObject(parameters[0], xOI));
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      SampleBuffer myAgg = (SampleBuffer) agg;
+      if (myAgg.sample == null) {
+        return null;
+      }
+      ArrayList<Object> partial = new ArrayList<Object>(4);
+      partial.add(new IntWritable(myAgg.sample.getN()));
+      partial.add(seed);
+      partial.add(new LongWritable(myAgg.sample.getCount()));
+      partial.add(myAgg.sample.getItems());
+      return partial;
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      SampleBuffer myAgg = (SampleBuffer) agg;
+      if (random == null) {
+        Object value = partialOI.getStructFieldData(partial, partialSeedField);
+        if (value == null) {
+          random = new Random();
+        } else {
+          seed = new LongWritable(PrimitiveObjectInspectorUtils.getLong(
+              value, (PrimitiveObjectInspector) partialSeedField.getFieldObjectInspector()));
+          random = new Random(seed.get());
+        }
+      }
+      if (myAgg.sample == null) {
+        initSample(myAgg, PrimitiveObjectInspectorUtils.getInt(
+            partialOI.getStructFieldData(partial, partialNField), nOI));
+      }
+      long count = PrimitiveObjectInspectorUtils.getLong(
+          partialOI.getStructFieldData(partial, partialCountField),
+          (PrimitiveObjectInspector) partialCountField.getFieldObjectInspector());
+      Object items = partialOI.getStructFieldData(partial, partialItemsField);
+      int n = partialItemsOI.getListLength(items);
+      ArrayList<Object> other = new ArrayList<Object>(n);
+      for (int ii = 0; ii < n; ++ii) {
+        other.add(ObjectInspectorUtils.copyToStandardObject(
+            partialItemsOI.getListElement(items, ii), xOI));
+      }
+      try {
+        myAgg.sample.merge(other, count);
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SampleBuffer myAgg = (SampleBuffer) agg;
+      if (myAgg.sample == null) {
+        return null;
+      }
+      return myAgg.sample.getItems();
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.SortedRuns;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Aggregate the values of x into an array sorted by sort_key, or by x itself
+ * if no sort key is given, smallest first.  This replaces
+ * ARRAY_SORT(COLLECT(x)), which materializes, copies and sorts each group in
+ * one go.  NULL values of x are ignored; NULL keys sort first.
+ *
+ * Each task sorts what it collected into a run, and partial aggregations are
+ * shipped already sorted, so the final step only k-way merges the runs (see
+ * lib.SortedRuns).  With a limit only the first limit values are kept, and
+ * each group holds O(limit) values at any time, which makes this a bounded
+ * "bottom k" collection.
+ *
+ * limit must be a constant.  With two arguments, a constant second argument
+ * is taken to be the limit, and anything else the sort key.
+ */
+@Description(name = "collect_sorted",
+    value = "_FUNC_(x[, sort_key][, limit]) - Returns the values of x sorted" +
+            " by sort_key (or by x), optionally only the first limit of them.")
+public class UDAFCollectSorted extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length < 1 || parameters.length > 3) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "One to three arguments are expected.");
+    }
+    if (parameters.length == 3 && !isIntegral(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "The limit must be an integer.");
+    }
+    for (int ii = 0; ii < Math.min(parameters.length, 2); ++ii) {
+      if (parameters[ii].getCategory() == ObjectInspector.Category.MAP) {
+        throw new UDFArgumentTypeException(ii,
+            "Maps cannot be sorted.");
+      }
+    }
+    return new Evaluator();
+  }
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+    throws SemanticException {
+    getEvaluator(info.getParameters());
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    if ((parameters.length == 2 && !isKeyed(parameters)) || parameters.length == 3) {
+      int ii = parameters.length - 1;
+      if (!(parameters[ii] instanceof ConstantObjectInspector)) {
+        throw new UDFArgumentTypeException(ii,
+            "The limit must be a constant.");
+      }
+      if (!isIntegral(info.getParameters()[ii])) {
+        throw new UDFArgumentTypeException(ii,
+            "The limit must be an integer.");
+      }
+      Object value = ((ConstantObjectInspector) parameters[ii]).getWritableConstantValue();
+      long constant = value == null ? 0 :
+          PrimitiveObjectInspectorUtils.getLong(value, (PrimitiveObjectInspector) parameters[ii]);
+      if (constant <= 0 || constant > Integer.MAX_VALUE) {
+        throw new UDFArgumentTypeException(ii,
+            "The limit must be a positive int.");
+      }
+    }
+    return new Evaluator();
+  }
+
+  /** Whether the arguments include a sort key, rather than only a limit. */
+  private static boolean isKeyed(ObjectInspector[] parameters) {
+    return parameters.length == 3 ||
+        (parameters.length == 2 && !(parameters[1] instanceof ConstantObjectInspector));
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of the limit, whether there is a
+   * sort key, the sorted keys and, if there is a sort key, the values in the
+   * same order.  Without a sort key the values are the keys and the values
+   * field is NULL.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // Read from the arguments in init(), as Hive creates evaluators with the
+    // default constructor, or in PARTIAL2 and FINAL from each partial.
+    private boolean keyed;
+    private int limit;
+
+    // For PARTIAL1 and COMPLETE.
+    private ObjectInspector xOI;
+    private ObjectInspector sortKeyOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialLimitField;
+    private StructField partialKeyedField;
+    private StructField partialKeysField;
+    private StructField partialValuesField;
+    private ListObjectInspector partialKeysOI;
+    private ListObjectInspector partialValuesOI;
+
+    private ObjectInspector standardKeyOI;
+    private ObjectInspector standardValueOI;
+    private transient Comparator<Object[]> order;
+
+    /** Items are {key, value} pairs, with a NULL value when not keyed. */
+    public static class RunsBuffer implements AggregationBuffer {
+      SortedRuns<Object[]> runs;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        keyed = isKeyed(parameters);
+        limit = Integer.MAX_VALUE;
+        if (parameters.length == 3 || (parameters.length == 2 && !keyed)) {
+          ObjectInspector limitOI = parameters[parameters.length - 1];
+          limit = PrimitiveObjectInspectorUtils.getInt(
+              ((ConstantObjectInspector) limitOI).getWritableConstantValue(),
+              (PrimitiveObjectInspector) limitOI);
+        }
+        xOI = parameters[0];
+        sortKeyOI = keyed ? parameters[1] : parameters[0];
+        standardKeyOI = ObjectInspectorUtils.getStandardObjectInspector(sortKeyOI);
+        standardValueOI = ObjectInspectorUtils.getStandardObjectInspector(xOI);
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialLimitField = partialOI.getStructFieldRef("limit");
+        partialKeyedField = partialOI.getStructFieldRef("keyed");
+        partialKeysField = partialOI.getStructFieldRef("keys");
+        partialValuesField = partialOI.getStructFieldRef("values");
+        partialKeysOI = (ListObjectInspector) partialKeysField.getFieldObjectInspector();
+        partialValuesOI = (ListObjectInspector) partialValuesField.getFieldObjectInspector();
+        standardKeyOI = ObjectInspectorUtils.getStandardObjectInspector(
+            partialKeysOI.getListElementObjectInspector());
+        standardValueOI = ObjectInspectorUtils.getStandardObjectInspector(
+            partialValuesOI.getListElementObjectInspector());
+      }
+      order = new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] o1, Object[] o2) {
+          return ObjectInspectorUtils.compare(o1[0], standardKeyOI, o2[0], standardKeyOI);
+        }
+      };
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("limit");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("keyed");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableBooleanObjectInspector);
+        fieldNames.add("keys");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(standardKeyOI));
+        fieldNames.add("values");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(standardValueOI));
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else {
+        // Without a sort key both are of the type of x, so FINAL, which
+        // only learns whether there is one from the partials, need not know.
+        return ObjectInspectorFactory.getStandardListObjectInspector(standardValueOI);
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new RunsBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((RunsBuffer) agg).runs = null;
+    }
+
+    private SortedRuns<Object[]> getRuns(RunsBuffer myAgg) {
+      if (myAgg.runs == null) {
+        myAgg.runs = new SortedRuns<Object[]>(order, limit);
+      }
+      return myAgg.runs;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      if (parameters[0] == null) {
+        return;
+      }
+      Object[] item = new Object[2];
+      if (keyed) {
+        item[0] = ObjectInspectorUtils.copyToStandardObject(parameters[1], sortKeyOI);
+        item[1] = ObjectInspectorUtils.copyToStandardObject(parameters[0], xOI);
+      } else {
+        item[0] = ObjectInspectorUtils.copyToStandardObject(parameters[0], xOI);
+      }
+      getRuns((RunsBuffer) agg).add(item);
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      RunsBuffer myAgg = (RunsBuffer) agg;
+      if (myAgg.runs == null || myAgg.runs.isEmpty()) {
+        return null;
+      }
+      List<Object[]> items = myAgg.runs.merge();
+      ArrayList<Object> keys = new ArrayList<Object>(items.size());
+      ArrayList<Object> values = keyed ? new ArrayList<Object>(items.size()) : null;
+      for (Object[] item : items) {
+        keys.add(item[0]);
+        if (keyed) {
+          values.add(item[1]);
+        }
+      }
+      ArrayList<Object> partial = new ArrayList<Object>(4);
+      partial.add(new IntWritable(limit));
+      partial.add(new BooleanWritable(keyed));
+      partial.add(keys);
+      partial.add(values);
+      return partial;
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      limit = PrimitiveObjectInspectorUtils.getInt(
+          partialOI.getStructFieldData(partial, partialLimitField),
+          (PrimitiveObjectInspector) partialLimitField.getFieldObjectInspector());
+      keyed = PrimitiveObjectInspectorUtils.getBoolean(
+          partialOI.getStructFieldData(partial, partialKeyedField),
+          (PrimitiveObjectInspector) partialKeyedField.getFieldObjectInspector());
+      Object keys = partialOI.getStructFieldData(partial, partialKeysField);
+      Object values = partialOI.getStructFieldData(partial, partialValuesField);
+      ObjectInspector keyOI = partialKeysOI.getListElementObjectInspector();
+      ObjectInspector valueOI = partialValuesOI.getListElementObjectInspector();
+      int n = Math.min(partialKeysOI.getListLength(keys), limit);
+      ArrayList<Object[]> run = new ArrayList<Object[]>(n);
+      for (int ii = 0; ii < n; ++ii) {
+        Object[] item = new Object[2];
+        item[0] = ObjectInspectorUtils.copyToStandardObject(
+            partialKeysOI.getListElement(keys, ii), keyOI);
+        if (keyed) {
+          item[1] = ObjectInspectorUtils.copyToStandardObject(
+              partialValuesOI.getListElement(values, ii), valueOI);
+        }
+        run.add(item);
+      }
+      getRuns((RunsBuffer) agg).addRun(run);
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      RunsBuffer myAgg = (RunsBuffer) agg;
+      if (myAgg.runs == null) {
+        return new ArrayList<Object>();
+      }
+      List<Object[]> items = myAgg.runs.merge();
+      ArrayList<Object> result = new ArrayList<Object>(items.size());
+      for (Object[] item : items) {
+        result.add(keyed ? item[1] : item[0]);
+      }
+      return result;
+    }
+  }
+}
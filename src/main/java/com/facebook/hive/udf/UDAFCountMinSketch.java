@@ -0,0 +1,174 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.CountMinSketch;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+
+/**
+ * Builds a Count-Min sketch (see lib.CountMinSketch) of the values of x, for
+ * looking up approximate frequencies of individual values with CMS_ESTIMATE
+ * without materializing a HISTOGRAM of every distinct value.  The sketch takes
+ * 8 * ceil(e / eps) * ceil(ln(1 / delta)) bytes however many distinct values
+ * there are.  Estimates are never too low, and exceed the true frequency by
+ * more than eps times the number of non-NULL rows with probability at most
+ * delta.
+ *
+ * NULL values are ignored.  x may be of any primitive type; see
+ * PrimitiveHash for which values are considered equal.
+ */
+@Description(name = "cms_agg",
+    value = "_FUNC_(x, eps, delta) - Returns a Count-Min sketch of the values" +
+            " of x, for use with cms_estimate.")
+public class UDAFCountMinSketch extends AbstractGenericUDAFResolver {
+  // Fixes the hash functions of every sketch.
+  static final long SEED = 0x636d73L;
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 3) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Exactly three arguments are expected.");
+    }
+    if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be of a primitive type.");
+    }
+    if (!isNumeric(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "eps must be a number.");
+    }
+    if (!isNumeric(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "delta must be a number.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isNumeric(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is the serialized sketch, as is the result.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector xOI;
+    private PrimitiveObjectInspector epsOI;
+    private PrimitiveObjectInspector deltaOI;
+
+    // For PARTIAL2 and FINAL.
+    private BinaryObjectInspector partialOI;
+
+    public static class SketchBuffer implements AggregationBuffer {
+      CountMinSketch sketch;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        xOI = (PrimitiveObjectInspector) parameters[0];
+        epsOI = (PrimitiveObjectInspector) parameters[1];
+        deltaOI = (PrimitiveObjectInspector) parameters[2];
+      } else {
+        partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new SketchBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((SketchBuffer) agg).sketch = null;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      if (myAgg.sketch == null) {
+        if (parameters[1] == null || parameters[2] == null) {
+          return;
+        }
+        try {
+          myAgg.sketch = CountMinSketch.withAccuracy(
+              PrimitiveObjectInspectorUtils.getDouble(parameters[1], epsOI),
+              PrimitiveObjectInspectorUtils.getDouble(parameters[2], deltaOI));
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      }
+      if (parameters[0] != null) {
+        myAgg.sketch.add(PrimitiveHash.hash64(parameters[0], xOI, SEED), 1);
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+      try {
+        if (myAgg.sketch == null) {
+          myAgg.sketch = CountMinSketch.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+        } else {
+          myAgg.sketch.addBytes(bytes.getBytes(), 0, bytes.getLength());
+        }
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      if (myAgg.sketch == null) {
+        return null;
+      }
+      return new BytesWritable(myAgg.sketch.toBytes());
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.SpaceSaving;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+
+
+/**
+ * Approximate top-k most frequent values with bounded memory.  Unlike
+ * HISTOGRAM, which counts every distinct value, each group keeps a fixed
+ * number of counters (capacity, 10 * k by default) using the Space-Saving
+ * algorithm (see lib.SpaceSaving), and partial aggregations from different
+ * tasks merge in O(capacity).
+ *
+ * Returns up to k structs of (item, count, error), most frequent first.  count
+ * is an overestimate of the item's frequency by at most error, and error is
+ * never more than the number of non-NULL rows divided by capacity.  Every
+ * item occurring more often than that is guaranteed to be counted.
+ *
+ * NULL values are ignored.  x may be of any primitive type.
+ */
+@Description(name = "heavy_hitters",
+    value = "_FUNC_(x, k[, capacity]) - Returns the approximate k most frequent" +
+            " values of x with their counts and maximum errors.")
+public class UDAFHeavyHitters extends AbstractGenericUDAFResolver {
+  public static final int CAPACITY_FACTOR = 10;
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 2 && parameters.length != 3) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Two or three arguments are expected.");
+    }
+    if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be of a primitive type.");
+    }
+    if (!isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "k must be an integer.");
+    }
+    if (parameters.length == 3 && !isIntegral(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "The capacity must be an integer.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of k, the capacity, the total count,
+   * and parallel arrays of the counted items, their counts and errors.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector kOI;
+    private PrimitiveObjectInspector capacityOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialKField;
+    private StructField partialCapacityField;
+    private StructField partialTotalField;
+    private StructField partialItemsField;
+    private StructField partialCountsField;
+    private StructField partialErrorsField;
+    private ListObjectInspector partialItemsOI;
+    private ListObjectInspector partialCountsOI;
+    private ListObjectInspector partialErrorsOI;
+
+    // The input item, or the partial's item, and its standard form.
+    private ObjectInspector itemOI;
+    private ObjectInspector standardItemOI;
+    // Whether an item, as given by itemOI or standardItemOI, is a counted item.
+    private transient SpaceSaving.Matcher itemMatcher;
+    private transient SpaceSaving.Matcher standardMatcher;
+
+    public static class HeavyHittersBuffer implements AggregationBuffer {
+      SpaceSaving<Object> summary;
+      int k;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        itemOI = parameters[0];
+        kOI = (PrimitiveObjectInspector) parameters[1];
+        if (parameters.length > 2) {
+          capacityOI = (PrimitiveObjectInspector) parameters[2];
+        }
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialKField = partialOI.getStructFieldRef("k");
+        partialCapacityField = partialOI.getStructFieldRef("capacity");
+        partialTotalField = partialOI.getStructFieldRef("total");
+        partialItemsField = partialOI.getStructFieldRef("items");
+        partialCountsField = partialOI.getStructFieldRef("counts");
+        partialErrorsField = partialOI.getStructFieldRef("errors");
+        partialItemsOI = (ListObjectInspector) partialItemsField.getFieldObjectInspector();
+        partialCountsOI = (ListObjectInspector) partialCountsField.getFieldObjectInspector();
+        partialErrorsOI = (ListObjectInspector) partialErrorsField.getFieldObjectInspector();
+        itemOI = partialItemsOI.getListElementObjectInspector();
+      }
+      standardItemOI = ObjectInspectorUtils.getStandardObjectInspector(itemOI);
+      itemMatcher = new SpaceSaving.Matcher() {
+        @Override
+        public boolean matches(Object probe, Object item) {
+          return ObjectInspectorUtils.compare(probe, itemOI, item, standardItemOI) == 0;
+        }
+      };
+      standardMatcher = new SpaceSaving.Matcher() {
+        @Override
+        public boolean matches(Object probe, Object item) {
+          return ObjectInspectorUtils.compare(probe, standardItemOI, item, standardItemOI) == 0;
+        }
+      };
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("k");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("capacity");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        fieldNames.add("total");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldNames.add("items");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(standardItemOI));
+        fieldNames.add("counts");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+        fieldNames.add("errors");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("item");
+        fieldOIs.add(standardItemOI);
+        fieldNames.add("count");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldNames.add("error");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs));
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new HeavyHittersBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      HeavyHittersBuffer myAgg = (HeavyHittersBuffer) agg;
+      myAgg.summary = null;
+      myAgg.k = 0;
+    }
+
+    private void initSummary(HeavyHittersBuffer myAgg, int k, int capacity)
+      throws HiveException {
+      if (k <= 0) {
+        throw new HiveException("k should be positive.");
+      }
+      if (capacity < k) {
+        throw new HiveException("The capacity should be at least k.");
+      }
+      try {
+        myAgg.summary = new SpaceSaving<Object>(capacity);
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+      myAgg.k = k;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      HeavyHittersBuffer myAgg = (HeavyHittersBuffer) agg;
+      if (myAgg.summary == null) {
+        if (parameters[1] == null) {
+          return;
+        }
+        int k = PrimitiveObjectInspectorUtils.getInt(parameters[1], kOI);
+        int capacity = CAPACITY_FACTOR * k;
+        if (capacityOI != null && parameters[2] != null) {
+          capacity = PrimitiveObjectInspectorUtils.getInt(parameters[2], capacityOI);
+        }
+        initSummary(myAgg, k, capacity);
+      }
+      Object x = parameters[0];
+      if (x == null) {
+        return;
+      }
+      // Only copy items which are not counted yet.
+      int hash = ObjectInspectorUtils.hashCode(x, itemOI);
+      int slot = myAgg.summary.find(x, hash, itemMatcher);
+      if (slot >= 0) {
+        myAgg.summary.incrementSlot(slot, 1);
+      } else {
+        myAgg.summary.insert(ObjectInspectorUtils.copyToStandardObject(x, itemOI), hash, 1);
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      HeavyHittersBuffer myAgg = (HeavyHittersBuffer) agg;
+      if (myAgg.summary == null) {
+        return null;
+      }
+      SpaceSaving<Object> summary = myAgg.summary;
+      Object[] items = summary.getItems();
+      long[] counts = summary.getCounts();
+      long[] errors = summary.getErrors();
+      ArrayList<Object> partialItems = new ArrayList<Object>(summary.size());
+      ArrayList<LongWritable> partialCounts = new ArrayList<LongWritable>(summary.size());
+      ArrayList<LongWritable> partialErrors = new ArrayList<LongWritable>(summary.size());
+      for (int ii = 0; ii < summary.size(); ++ii) {
+        partialItems.add(items[ii]);
+        partialCounts.add(new LongWritable(counts[ii]));
+        partialErrors.add(new LongWritable(errors[ii]));
+      }
+      ArrayList<Object> partial = new ArrayList<Object>(6);
+      partial.add(new IntWritable(myAgg.k));
+      partial.add(new IntWritable(summary.getCapacity()));
+      partial.add(new LongWritable(summary.getTotalCount()));
+      partial.add(partialItems);
+      partial.add(partialCounts);
+      partial.add(partialErrors);
+      return partial;
+    }
+
+    private static long getLong(Object o, ObjectInspector oi) {
+      return PrimitiveObjectInspectorUtils.getLong(o, (PrimitiveObjectInspector) oi);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      HeavyHittersBuffer myAgg = (HeavyHittersBuffer) agg;
+      int capacity = (int) getLong(
+          partialOI.getStructFieldData(partial, partialCapacityField),
+          partialCapacityField.getFieldObjectInspector());
+      if (myAgg.summary == null) {
+        initSummary(myAgg,
+            (int) getLong(partialOI.getStructFieldData(partial, partialKField),
+                          partialKField.getFieldObjectInspector()),
+            capacity);
+      }
+
+      Object items = partialOI.getStructFieldData(partial, partialItemsField);
+      Object counts = partialOI.getStructFieldData(partial, partialCountsField);
+      Object errors = partialOI.getStructFieldData(partial, partialErrorsField);
+      int n = partialItemsOI.getListLength(items);
+      Object[] otherItems = new Object[n];
+      int[] otherHashes = new int[n];
+      long[] otherCounts = new long[n];
+      long[] otherErrors = new long[n];
+      for (int ii = 0; ii < n; ++ii) {
+        Object item = partialItemsOI.getListElement(items, ii);
+        otherHashes[ii] = ObjectInspectorUtils.hashCode(item, itemOI);
+        otherItems[ii] = ObjectInspectorUtils.copyToStandardObject(item, itemOI);
+        otherCounts[ii] = getLong(partialCountsOI.getListElement(counts, ii),
+                                  partialCountsOI.getListElementObjectInspector());
+        otherErrors[ii] = getLong(partialErrorsOI.getListElement(errors, ii),
+                                  partialErrorsOI.getListElementObjectInspector());
+      }
+      // The partial's smallest count, if all of its counters were taken.
+      long otherMinCount = 0;
+      if (n == capacity) {
+        otherMinCount = Long.MAX_VALUE;
+        for (int ii = 0; ii < n; ++ii) {
+          otherMinCount = Math.min(otherMinCount, otherCounts[ii]);
+        }
+      }
+      myAgg.summary.merge(otherItems, otherHashes, otherCounts, otherErrors, n, otherMinCount,
+          getLong(partialOI.getStructFieldData(partial, partialTotalField),
+                  partialTotalField.getFieldObjectInspector()),
+          standardMatcher);
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      HeavyHittersBuffer myAgg = (HeavyHittersBuffer) agg;
+      if (myAgg.summary == null) {
+        return null;
+      }
+      SpaceSaving<Object> summary = myAgg.summary;
+      Object[] items = summary.getItems();
+      long[] counts = summary.getCounts();
+      long[] errors = summary.getErrors();
+      int[] top = summary.top(myAgg.k);
+      ArrayList<Object> result = new ArrayList<Object>(top.length);
+      for (int ii : top) {
+        ArrayList<Object> row = new ArrayList<Object>(3);
+        row.add(items[ii]);
+        row.add(new LongWritable(counts[ii]));
+        row.add(new LongWritable(errors[ii]));
+        result.add(row);
+      }
+      return result;
+    }
+  }
+}
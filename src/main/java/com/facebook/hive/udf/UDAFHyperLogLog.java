@@ -0,0 +1,195 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.HyperLogLog;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+
+/**
+ * Builds a HyperLogLog sketch (see lib.HyperLogLog) of the distinct values
+ * of x, for counting them with HLL_CARDINALITY or rolling sketches up with
+ * HLL_UNION.  If x is an array its elements are counted, which replaces
+ * SIZE(UNION_SET(x)) without holding every distinct element in memory.  The
+ * sketch takes at most 2^precision bytes and the count has a relative
+ * standard error of about 1.04 / sqrt(2^precision); precision is in [4, 18]
+ * and defaults to 14 (16KB, 0.8%).  Small sketches are sparse and much
+ * smaller, and count exactly up to a few hundred values.
+ *
+ * NULL values and NULL elements are ignored.  Values may be of any
+ * primitive type; see PrimitiveHash for which values are considered equal.
+ */
+@Description(name = "hll_agg",
+    value = "_FUNC_(x[, precision]) - Returns a HyperLogLog sketch of the" +
+            " distinct values of x, or of the elements of x if it is an array.")
+public class UDAFHyperLogLog extends AbstractGenericUDAFResolver {
+  // Fixes the hash function of every sketch.
+  static final long SEED = 0x686c6cL;
+  static final int DEFAULT_PRECISION = 14;
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 1 && parameters.length != 2) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "One or two arguments are expected.");
+    }
+    TypeInfo x = parameters[0];
+    if (x.getCategory() == ObjectInspector.Category.LIST) {
+      x = ((ListTypeInfo) x).getListElementTypeInfo();
+    }
+    if (x.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be of a primitive type or an array of one.");
+    }
+    if (parameters.length == 2 && !isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "The precision must be an integer.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is the serialized sketch, as is the result.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private ListObjectInspector listOI;
+    private PrimitiveObjectInspector xOI;
+    private PrimitiveObjectInspector precisionOI;
+
+    // For PARTIAL2 and FINAL.
+    private BinaryObjectInspector partialOI;
+
+    public static class SketchBuffer implements AggregationBuffer {
+      HyperLogLog sketch;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        if (parameters[0].getCategory() == ObjectInspector.Category.LIST) {
+          listOI = (ListObjectInspector) parameters[0];
+          xOI = (PrimitiveObjectInspector) listOI.getListElementObjectInspector();
+        } else {
+          listOI = null;
+          xOI = (PrimitiveObjectInspector) parameters[0];
+        }
+        precisionOI = parameters.length > 1 ? (PrimitiveObjectInspector) parameters[1] : null;
+      } else {
+        partialOI = (BinaryObjectInspector) parameters[0];
+      }
+      return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new SketchBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((SketchBuffer) agg).sketch = null;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      if (myAgg.sketch == null) {
+        int precision = DEFAULT_PRECISION;
+        if (precisionOI != null) {
+          if (parameters[1] == null) {
+            return;
+          }
+          precision = PrimitiveObjectInspectorUtils.getInt(parameters[1], precisionOI);
+        }
+        try {
+          myAgg.sketch = new HyperLogLog(precision);
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      }
+      Object x = parameters[0];
+      if (x == null) {
+        return;
+      }
+      if (listOI == null) {
+        myAgg.sketch.add(PrimitiveHash.hash64(x, xOI, SEED));
+        return;
+      }
+      int n = listOI.getListLength(x);
+      for (int ii = 0; ii < n; ++ii) {
+        Object element = listOI.getListElement(x, ii);
+        if (element != null) {
+          myAgg.sketch.add(PrimitiveHash.hash64(element, xOI, SEED));
+        }
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+      try {
+        HyperLogLog other = HyperLogLog.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+        if (myAgg.sketch == null) {
+          myAgg.sketch = other;
+        } else {
+          myAgg.sketch.merge(other);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      if (myAgg.sketch == null) {
+        return null;
+      }
+      return new BytesWritable(myAgg.sketch.toBytes());
+    }
+  }
+}
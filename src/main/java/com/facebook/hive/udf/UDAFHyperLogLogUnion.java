@@ -0,0 +1,115 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.HyperLogLog;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+
+/**
+ * Merges HyperLogLog sketches built by HLL_AGG (or HLL_UNION), e.g. to roll
+ * daily sketches up into a sketch of the distinct values over a month.  The
+ * result counts the distinct values of all the inputs together.  Sketches of
+ * different precisions may be merged; the result has the smallest of them.
+ * NULL sketches are ignored.
+ */
+@Description(name = "hll_union",
+    value = "_FUNC_(sketch) - Returns the union of HyperLogLog sketches built by hll_agg.")
+public class UDAFHyperLogLogUnion extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 1) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Exactly one argument is expected.");
+    }
+    if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+        ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory() !=
+        PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+      throw new UDFArgumentTypeException(0,
+          "The sketch must be binary.");
+    }
+    return new Evaluator();
+  }
+
+  /**
+   * The input, the partial aggregation and the result are all serialized
+   * sketches.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    private BinaryObjectInspector sketchOI;
+
+    public static class SketchBuffer implements AggregationBuffer {
+      HyperLogLog sketch;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+      sketchOI = (BinaryObjectInspector) parameters[0];
+      return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new SketchBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((SketchBuffer) agg).sketch = null;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      merge(agg, parameters[0]);
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      BytesWritable bytes = sketchOI.getPrimitiveWritableObject(partial);
+      try {
+        HyperLogLog other = HyperLogLog.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+        if (myAgg.sketch == null) {
+          myAgg.sketch = other;
+        } else {
+          myAgg.sketch.merge(other);
+        }
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SketchBuffer myAgg = (SketchBuffer) agg;
+      if (myAgg.sketch == null) {
+        return null;
+      }
+      return new BytesWritable(myAgg.sketch.toBytes());
+    }
+  }
+}
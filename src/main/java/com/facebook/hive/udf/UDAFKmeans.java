@@ -0,0 +1,367 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.KMeansSketch;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * Performs K-means on points spread across rows.  Each point is an array of
+ * DOUBLEs, all of the same size; K is the number of clusters and the last
+ * argument bounds the number of Lloyd iterations, as for KMEANS.  Unlike
+ * KMEANS, the points do not need to be collected into a single row first.
+ *
+ * Each task keeps a bounded sketch of weighted centroids (see
+ * lib.KMeansSketch) rather than the points themselves, so memory per group is
+ * O(K * M) and the partial aggregation shipped through the shuffle is at most
+ * 10 * K centroids.  Sketches from different tasks are merged and the final
+ * sketch is clustered with weighted K-means++ and Lloyd's algorithm.  The
+ * result is an approximation of running KMEANS on all of the points.
+ *
+ * Rows whose point is NULL or contains a NULL are ignored.
+ *
+ * The sketches and K-means++ draw random numbers.  If seed is given (it must
+ * be a constant) they are seeded with it, as for KMEANS, so the same points
+ * read and merged in the same order give the same clusters.
+ *
+ * The return value has the same format as KMEANS: an array of centers, each
+ * holding the M mean coordinates, the average squared distance of the points
+ * from the mean and the number of points in the cluster.
+ */
+@Description(name = "kmeans_agg",
+             value = "_FUNC_(point, K, max_iterations[, seed]) - Perform K-means clustering on points in multiple rows and returns an array of cluster centers.")
+public class UDAFKmeans extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 3 && parameters.length != 4) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Three or four arguments are expected.");
+    }
+
+    if (parameters[0].getCategory() != ObjectInspector.Category.LIST ||
+        !isNumeric(((ListTypeInfo) parameters[0]).getListElementTypeInfo())) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be an array of numbers.");
+    }
+    if (!isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "K must be an integer.");
+    }
+    if (!isIntegral(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "max_iterations must be an integer.");
+    }
+    if (parameters.length == 4 && !isIntegral(parameters[3])) {
+      throw new UDFArgumentTypeException(3,
+          "The seed must be an integer.");
+    }
+
+    return new Evaluator();
+  }
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+    throws SemanticException {
+    getEvaluator(info.getParameters());
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    if (parameters.length == 4 && !(parameters[3] instanceof ConstantObjectInspector)) {
+      throw new UDFArgumentTypeException(3,
+          "The seed must be a constant.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isNumeric(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of the seed (NULL if none was given)
+   * and the sketch as a flat array of DOUBLEs:
+   *
+   *   [K, max_iterations, M, n, (weight, error, x_1, ..., x_M) * n]
+   *
+   * where error is the sum of squared distances of the summarized points from
+   * the centroid x.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // Read from the arguments in init(), as Hive creates evaluators with the
+    // default constructor, or in PARTIAL2 and FINAL from the first partial.
+    private LongWritable seed;
+
+    // For PARTIAL1 and COMPLETE.
+    private ListObjectInspector pointOI;
+    private PrimitiveObjectInspector coordinateOI;
+    private PrimitiveObjectInspector kOI;
+    private PrimitiveObjectInspector iterationsOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialSeedField;
+    private StructField partialSketchField;
+    private ListObjectInspector partialSketchOI;
+    private PrimitiveObjectInspector partialElementOI;
+
+    private double[] scratch;
+    private transient Random random;
+
+    public static class KmeansBuffer implements AggregationBuffer {
+      KMeansSketch sketch;
+      int max_iterations;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+      seed = null;
+      random = null;
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        pointOI = (ListObjectInspector) parameters[0];
+        coordinateOI = (PrimitiveObjectInspector) pointOI.getListElementObjectInspector();
+        kOI = (PrimitiveObjectInspector) parameters[1];
+        iterationsOI = (PrimitiveObjectInspector) parameters[2];
+        if (parameters.length == 4) {
+          Object value = ((ConstantObjectInspector) parameters[3]).getWritableConstantValue();
+          if (value != null) {
+            seed = new LongWritable(PrimitiveObjectInspectorUtils.getLong(
+                value, (PrimitiveObjectInspector) parameters[3]));
+          }
+        }
+        random = seed == null ? new Random() : new Random(seed.get());
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialSeedField = partialOI.getStructFieldRef("seed");
+        partialSketchField = partialOI.getStructFieldRef("sketch");
+        partialSketchOI = (ListObjectInspector) partialSketchField.getFieldObjectInspector();
+        partialElementOI = (PrimitiveObjectInspector) partialSketchOI.getListElementObjectInspector();
+      }
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("seed");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+        fieldNames.add("sketch");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else {
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            ObjectInspectorFactory.getStandardListObjectInspector(
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector));
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new KmeansBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      KmeansBuffer myAgg = (KmeansBuffer) agg;
+      myAgg.sketch = null;
+      myAgg.max_iterations = 0;
+    }
+
+    private void initSketch(KmeansBuffer myAgg, int K, int max_iterations)
+      throws HiveException {
+      if (K <= 0) {
+        throw new HiveException("K should be positive.");
+      }
+      myAgg.sketch = new KMeansSketch(K, random);
+      myAgg.max_iterations = max_iterations;
+    }
+
+    private double[] scratch(int M) {
+      if (scratch == null || scratch.length < M) {
+        scratch = new double[M];
+      }
+      return scratch;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      KmeansBuffer myAgg = (KmeansBuffer) agg;
+      if (parameters[0] == null || parameters[1] == null || parameters[2] == null) {
+        return;
+      }
+      if (myAgg.sketch == null) {
+        initSketch(myAgg,
+            PrimitiveObjectInspectorUtils.getInt(parameters[1], kOI),
+            PrimitiveObjectInspectorUtils.getInt(parameters[2], iterationsOI));
+      }
+
+      int M = pointOI.getListLength(parameters[0]);
+      double[] point = scratch(M);
+      for (int mm = 0; mm < M; ++mm) {
+        Object coordinate = pointOI.getListElement(parameters[0], mm);
+        if (coordinate == null) {
+          return;
+        }
+        point[mm] = PrimitiveObjectInspectorUtils.getDouble(coordinate, coordinateOI);
+      }
+      try {
+        myAgg.sketch.add(point, 0, M, 1.0, 0.0);
+      } catch (IllegalArgumentException e) {
+        throw new HiveException(e.getMessage());
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      KmeansBuffer myAgg = (KmeansBuffer) agg;
+      if (myAgg.sketch == null || myAgg.sketch.size() == 0) {
+        return null;
+      }
+
+      KMeansSketch sketch = myAgg.sketch;
+      sketch.compact();
+      int M = sketch.getDimension();
+      int n = sketch.size();
+      double[] centroids = sketch.getCentroids();
+      double[] weights = sketch.getWeights();
+      double[] errors = sketch.getErrors();
+
+      ArrayList<DoubleWritable> flat = new ArrayList<DoubleWritable>(4 + n * (M + 2));
+      flat.add(new DoubleWritable(sketch.getK()));
+      flat.add(new DoubleWritable(myAgg.max_iterations));
+      flat.add(new DoubleWritable(M));
+      flat.add(new DoubleWritable(n));
+      for (int ii = 0; ii < n; ++ii) {
+        flat.add(new DoubleWritable(weights[ii]));
+        flat.add(new DoubleWritable(errors[ii]));
+        for (int mm = 0; mm < M; ++mm) {
+          flat.add(new DoubleWritable(centroids[ii * M + mm]));
+        }
+      }
+
+      ArrayList<Object> partial = new ArrayList<Object>(2);
+      partial.add(seed);
+      partial.add(flat);
+      return partial;
+    }
+
+    private double partialElement(Object sketch, int index) {
+      return PrimitiveObjectInspectorUtils.getDouble(
+          partialSketchOI.getListElement(sketch, index), partialElementOI);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      KmeansBuffer myAgg = (KmeansBuffer) agg;
+      if (random == null) {
+        Object value = partialOI.getStructFieldData(partial, partialSeedField);
+        if (value == null) {
+          random = new Random();
+        } else {
+          seed = new LongWritable(PrimitiveObjectInspectorUtils.getLong(
+              value, (PrimitiveObjectInspector) partialSeedField.getFieldObjectInspector()));
+          random = new Random(seed.get());
+        }
+      }
+      Object sketch = partialOI.getStructFieldData(partial, partialSketchField);
+      if (myAgg.sketch == null) {
+        initSketch(myAgg,
+            (int) partialElement(sketch, 0),
+            (int) partialElement(sketch, 1));
+      }
+
+      int M = (int) partialElement(sketch, 2);
+      int n = (int) partialElement(sketch, 3);
+      double[] point = scratch(M);
+      int index = 4;
+      for (int ii = 0; ii < n; ++ii) {
+        double weight = partialElement(sketch, index++);
+        double error = partialElement(sketch, index++);
+        for (int mm = 0; mm < M; ++mm) {
+          point[mm] = partialElement(sketch, index++);
+        }
+        try {
+          myAgg.sketch.add(point, 0, M, weight, error);
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      KmeansBuffer myAgg = (KmeansBuffer) agg;
+      if (myAgg.sketch == null || myAgg.sketch.size() == 0) {
+        return null;
+      }
+
+      double[][] centers = myAgg.sketch.cluster(myAgg.max_iterations);
+      ArrayList<ArrayList<Double>> result = new ArrayList<ArrayList<Double>>(centers.length);
+      for (double[] center : centers) {
+        ArrayList<Double> row = new ArrayList<Double>(center.length);
+        for (double value : center) {
+          row.add(value);
+        }
+        result.add(row);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.MinHash;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+
+
+/**
+ * Builds the MinHash signature (see lib.MinHash) of the set of distinct
+ * values of x, or of the elements of x if it is an array, for estimating
+ * Jaccard similarities with MINHASH_JACCARD or finding similar pairs with
+ * MINHASH_BANDS.  The signature is an array of num_hashes bigints, the same as
+ * MINHASH of an array of the values would give, so a pair of sets is compared
+ * in O(num_hashes) however large they are.  The estimate has a standard error
+ * of at most 0.5 / sqrt(num_hashes).
+ *
+ * NULL values and NULL elements are ignored.  Values may be of any primitive
+ * type; see PrimitiveHash for which values are considered equal.
+ */
+@Description(name = "minhash_agg",
+    value = "_FUNC_(x, num_hashes) - Returns the MinHash signature of the" +
+            " distinct values of x, or of the elements of x if it is an array.")
+public class UDAFMinHash extends AbstractGenericUDAFResolver {
+  // Fixes the hash function of every signature.
+  static final long SEED = 0x6d6e68L;
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 2) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Exactly two arguments are expected.");
+    }
+    TypeInfo x = parameters[0];
+    if (x.getCategory() == ObjectInspector.Category.LIST) {
+      x = ((ListTypeInfo) x).getListElementTypeInfo();
+    }
+    if (x.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The first argument must be of a primitive type or an array of one.");
+    }
+    if (!isIntegral(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "num_hashes must be an integer.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is the signature, as is the result.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private ListObjectInspector listOI;
+    private PrimitiveObjectInspector xOI;
+    private PrimitiveObjectInspector numHashesOI;
+
+    // For PARTIAL2 and FINAL.
+    private ListObjectInspector partialOI;
+    private PrimitiveObjectInspector partialElementOI;
+
+    public static class SignatureBuffer implements AggregationBuffer {
+      MinHash minhash;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        if (parameters[0].getCategory() == ObjectInspector.Category.LIST) {
+          listOI = (ListObjectInspector) parameters[0];
+          xOI = (PrimitiveObjectInspector) listOI.getListElementObjectInspector();
+        } else {
+          listOI = null;
+          xOI = (PrimitiveObjectInspector) parameters[0];
+        }
+        numHashesOI = (PrimitiveObjectInspector) parameters[1];
+      } else {
+        partialOI = (ListObjectInspector) parameters[0];
+        partialElementOI = (PrimitiveObjectInspector) partialOI.getListElementObjectInspector();
+      }
+      return ObjectInspectorFactory.getStandardListObjectInspector(
+          PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new SignatureBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((SignatureBuffer) agg).minhash = null;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      SignatureBuffer myAgg = (SignatureBuffer) agg;
+      if (myAgg.minhash == null) {
+        if (parameters[1] == null) {
+          return;
+        }
+        try {
+          myAgg.minhash = new MinHash(PrimitiveObjectInspectorUtils.getInt(parameters[1], numHashesOI));
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      }
+      Object x = parameters[0];
+      if (x == null) {
+        return;
+      }
+      if (listOI == null) {
+        myAgg.minhash.add(PrimitiveHash.hash64(x, xOI, SEED));
+        return;
+      }
+      int n = listOI.getListLength(x);
+      for (int ii = 0; ii < n; ++ii) {
+        Object element = listOI.getListElement(x, ii);
+        if (element != null) {
+          myAgg.minhash.add(PrimitiveHash.hash64(element, xOI, SEED));
+        }
+      }
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      return terminate(agg);
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      SignatureBuffer myAgg = (SignatureBuffer) agg;
+      int n = partialOI.getListLength(partial);
+      if (myAgg.minhash == null) {
+        myAgg.minhash = new MinHash(n);
+      } else if (myAgg.minhash.getNumHashes() != n) {
+        throw new HiveException("Signatures of different lengths cannot be merged.");
+      }
+      for (int ii = 0; ii < n; ++ii) {
+        myAgg.minhash.merge(ii, PrimitiveObjectInspectorUtils.getLong(
+            partialOI.getListElement(partial, ii), partialElementOI));
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      SignatureBuffer myAgg = (SignatureBuffer) agg;
+      if (myAgg.minhash == null) {
+        return null;
+      }
+      return toList(myAgg.minhash.getSignature());
+    }
+  }
+
+  static ArrayList<LongWritable> toList(long[] signature) {
+    ArrayList<LongWritable> result = new ArrayList<LongWritable>(signature.length);
+    for (long value : signature) {
+      result.add(new LongWritable(value));
+    }
+    return result;
+  }
+
+  /**
+   * Reads a signature into scratch, or into a new array if scratch is not of
+   * its length.
+   */
+  static long[] toArray(Object signature, ListObjectInspector signatureOI, long[] scratch) {
+    PrimitiveObjectInspector elementOI =
+        (PrimitiveObjectInspector) signatureOI.getListElementObjectInspector();
+    int n = signatureOI.getListLength(signature);
+    long[] result = scratch != null && scratch.length == n ? scratch : new long[n];
+    for (int ii = 0; ii < n; ++ii) {
+      Object element = signatureOI.getListElement(signature, ii);
+      result[ii] = element == null ? Long.MAX_VALUE :
+          PrimitiveObjectInspectorUtils.getLong(element, elementOI);
+    }
+    return result;
+  }
+
+  /** Whether oi is of an array of integers, as a signature should be. */
+  static boolean isSignature(ObjectInspector oi) {
+    if (oi.getCategory() != ObjectInspector.Category.LIST) {
+      return false;
+    }
+    ObjectInspector elementOI = ((ListObjectInspector) oi).getListElementObjectInspector();
+    return elementOI.getCategory() == ObjectInspector.Category.PRIMITIVE &&
+        isIntegral(((PrimitiveObjectInspector) elementOI).getTypeInfo());
+  }
+}
@@ -20,50 +20,29 @@ package com.facebook.hive.udf;
 
 // package org.apache.hadoop.hive.contrib.udaf;
 
+import com.facebook.hive.udf.lib.TopNHeap;
 import org.apache.hadoop.hive.ql.exec.UDAF;
 import org.apache.hadoop.hive.ql.exec.UDAFEvaluator;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Returns the N keys with the highest values, highest first.  Rows with a
+ * NULL value are ignored.
+ */
 public final class UDAFTopN extends UDAF {
-    public static class StringDoublePair implements Comparable<StringDoublePair> {
-        public StringDoublePair() {
-          this.key = null;
-          this.value = null;
-        }
-
-	public StringDoublePair(String key, double value) {
-	    this.key = key;
-	    this.value = value;
-	}
-
-	public String getString() {
-	    return this.key;
-	}
-
-	public int compareTo(StringDoublePair o) {
-	    return o.value.compareTo(this.value);
-	}
-
-	private String key;
-	private Double value;
-    }
-
-  //    public static class UDAFTopNException extends Exception {
-  //      public static final long serialVersionUID = 1L;
-  //    }
 
     /**
      * Note that this is only needed if the internal state cannot be represented
      * by a primitive.
      *
-     * The internal state can also contains fields with types like
-     * ArrayList<String> and HashMap<String,Double> if needed.
+     * The partial aggregation holds at most N keys and their values, in no
+     * particular order.
      */
     public static class UDAFTopNState {
-	// The head of the queue should contain the smallest element.
-      //	private PriorityQueue<StringDoublePair> queue;
-      private LinkedList<StringDoublePair> queue;
+      private List<String> keys;
+      private List<Double> values;
       private Integer N;
     }
 
@@ -74,6 +53,8 @@ public final class UDAFTopN extends UDAF {
     public static class UDAFTopNEvaluator implements UDAFEvaluator {
 
 	UDAFTopNState state;
+	// The head of the heap holds the smallest of the top N values.
+	TopNHeap<String> heap;
 
 	public UDAFTopNEvaluator() {
 	    super();
@@ -85,11 +66,17 @@ public final class UDAFTopN extends UDAF {
 	 * Reset the state of the aggregation.
 	 */
 	public void init() {
-          //	    state.queue = new PriorityQueue<StringDoublePair>();
-          state.queue = new LinkedList<StringDoublePair>();
+	    heap = null;
 	    state.N = null;
 	}
 
+	private void setN(Integer N) {
+	    if (heap == null && N != null) {
+		state.N = N;
+		heap = new TopNHeap<String>(Math.max(N, 0));
+	    }
+	}
+
 	/**
 	 * Iterate through one row of original data.
 	 *
@@ -98,17 +85,10 @@ public final class UDAFTopN extends UDAF {
 	 *
 	 * This function should always return true.
 	 */
-      //	public boolean iterate(String key, Double value, Integer N) throws UDAFTopNException {
 	public boolean iterate(String key, Double value, Integer N) {
-          //	    if (N == null || (state.N != null  && state.N != N)) {
-          //		throw new UDAFTopNException();
-          //	    }
-	    if (state.N == null) {
-		state.N = N;
-	    }
-	    if (value != null) {
-		state.queue.add(new StringDoublePair(key, value));
-		prune(state.queue, state.N);
+	    setN(N);
+	    if (heap != null && value != null) {
+		heap.offer(key, value);
 	    }
 	    return true;
 	}
@@ -118,11 +98,18 @@ public final class UDAFTopN extends UDAF {
 	 * primitive, just return primitive Java classes like Integer or String.
 	 */
 	public UDAFTopNState terminatePartial() {
-	    if (state.queue.size() > 0) {
-		return state;
-	    } else {
+	    if (heap == null || heap.size() == 0) {
 		return null;
 	    }
+	    Object[] keys = heap.getKeys();
+	    double[] values = heap.getScores();
+	    state.keys = new ArrayList<String>(heap.size());
+	    state.values = new ArrayList<Double>(heap.size());
+	    for (int ii = 0; ii < heap.size(); ++ii) {
+		state.keys.add((String) keys[ii]);
+		state.values.add(values[ii]);
+	    }
+	    return state;
 	}
 
 	/**
@@ -132,39 +119,29 @@ public final class UDAFTopN extends UDAF {
 	 * type as the return value of terminatePartial().
 	 */
 	public boolean merge(UDAFTopNState o) {
-          //	public boolean merge(UDAFTopNState o) throws UDAFTopNException {
-	    if (o != null) {
-		state.queue.addAll(o.queue);
-		if (o.N != state.N) {
-                  //		    throw new UDAFTopNException();
+	    if (o != null && o.keys != null) {
+		setN(o.N);
+		for (int ii = 0; ii < o.keys.size(); ++ii) {
+		    heap.offer(o.keys.get(ii), o.values.get(ii));
 		}
-		prune(state.queue, state.N);
 	    }
 	    return true;
 	}
 
-      //	void prune(PriorityQueue<StringDoublePair> queue, int N) {
-	void prune(LinkedList<StringDoublePair> queue, int N) {
-	    while (queue.size() > N) {
-              //		queue.remove();
-              queue.removeLast();
-	    }
-	}
-
 	/**
 	 * Terminates the aggregation and return the final result.
 	 */
-	public LinkedList<String> terminate() {
-	    LinkedList<String> result = new LinkedList<String>();
-	    while (state.queue.size() > 0) {
-              StringDoublePair p = state.queue.poll();
-              result.addFirst(p.getString());
+	public List<String> terminate() {
+	    List<String> result = new ArrayList<String>();
+	    if (heap == null) {
+		return result;
+	    }
+	    heap.sort();
+	    Object[] keys = heap.getKeys();
+	    for (int ii = 0; ii < heap.size(); ++ii) {
+		result.add((String) keys[ii]);
 	    }
 	    return result;
 	}
     }
-
-  //    private UDAFTopN() {
-	// prevent instantiation
-  //    }
 }
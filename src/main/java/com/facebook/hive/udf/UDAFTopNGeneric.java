@@ -0,0 +1,335 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.TopNHeap;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.IntWritable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+
+/**
+ * Returns the N keys with the highest scores, highest first.  Like
+ * UDAFTopN, but keys may be of any primitive type and scores of any numeric
+ * type.  Keys with equal scores are ordered by key, smallest first, and ties
+ * at the N-th place are broken the same way, so the result does not depend on
+ * how rows are spread across tasks.  Rows with a NULL score are ignored.
+ *
+ * If with_scores is given and true the result is an array of
+ * struct<key, score> instead of an array of keys.  with_scores must be a
+ * constant.
+ *
+ * Each group keeps at most N keys in a heap on primitive scores, and the
+ * partial aggregation is a struct of N and parallel arrays of at most N keys
+ * and scores.  If with_scores is true the struct also has a with_scores
+ * field: the final aggregation must choose its result type from the type of
+ * the partial, before it has seen any partial.
+ */
+@Description(name = "top_n",
+    value = "_FUNC_(key, score, N[, with_scores]) - Returns the N keys with" +
+            " the highest scores, optionally with their scores.")
+public class UDAFTopNGeneric extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 3 && parameters.length != 4) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Three or four arguments are expected.");
+    }
+    if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      throw new UDFArgumentTypeException(0,
+          "The key must be of a primitive type.");
+    }
+    if (!isNumeric(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "The score must be a number.");
+    }
+    if (!isIntegral(parameters[2])) {
+      throw new UDFArgumentTypeException(2,
+          "N must be an integer.");
+    }
+    if (parameters.length == 4 &&
+        (parameters[3].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+         ((PrimitiveTypeInfo) parameters[3]).getPrimitiveCategory() !=
+         PrimitiveObjectInspector.PrimitiveCategory.BOOLEAN)) {
+      throw new UDFArgumentTypeException(3,
+          "with_scores must be a boolean.");
+    }
+    return new Evaluator();
+  }
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+    throws SemanticException {
+    getEvaluator(info.getParameters());
+    ObjectInspector[] parameters = info.getParameterObjectInspectors();
+    if (parameters.length == 4 && !(parameters[3] instanceof ConstantObjectInspector)) {
+      throw new UDFArgumentTypeException(3,
+          "with_scores must be a constant.");
+    }
+    return new Evaluator();
+  }
+
+  private static boolean isNumeric(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static boolean isIntegral(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of N, the keys and their scores,
+   * and with_scores if it is true.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // Set in init(), as Hive creates evaluators with the default constructor.
+    private boolean with_scores;
+
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector scoreOI;
+    private PrimitiveObjectInspector nOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialNField;
+    private StructField partialKeysField;
+    private StructField partialScoresField;
+    private ListObjectInspector partialKeysOI;
+    private ListObjectInspector partialScoresOI;
+
+    // The input key, or the partial's key, and its standard form.
+    private ObjectInspector keyOI;
+    private ObjectInspector standardKeyOI;
+    private transient Comparator<Object> ties;
+
+    public static class TopNBuffer implements AggregationBuffer {
+      TopNHeap<Object> heap;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        keyOI = parameters[0];
+        scoreOI = (PrimitiveObjectInspector) parameters[1];
+        nOI = (PrimitiveObjectInspector) parameters[2];
+        with_scores = false;
+        if (parameters.length == 4) {
+          Object value = ((ConstantObjectInspector) parameters[3]).getWritableConstantValue();
+          with_scores = value != null && ((BooleanWritable) value).get();
+        }
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialNField = partialOI.getStructFieldRef("n");
+        partialKeysField = partialOI.getStructFieldRef("keys");
+        partialScoresField = partialOI.getStructFieldRef("scores");
+        partialKeysOI = (ListObjectInspector) partialKeysField.getFieldObjectInspector();
+        partialScoresOI = (ListObjectInspector) partialScoresField.getFieldObjectInspector();
+        keyOI = partialKeysOI.getListElementObjectInspector();
+        scoreOI = (PrimitiveObjectInspector) partialScoresOI.getListElementObjectInspector();
+        nOI = (PrimitiveObjectInspector) partialNField.getFieldObjectInspector();
+        with_scores = false;
+        for (StructField field : partialOI.getAllStructFieldRefs()) {
+          if (field.getFieldName().equalsIgnoreCase("with_scores")) {
+            with_scores = true;
+          }
+        }
+      }
+      standardKeyOI = ObjectInspectorUtils.getStandardObjectInspector(keyOI);
+      ties = new Comparator<Object>() {
+        @Override
+        public int compare(Object o1, Object o2) {
+          return ObjectInspectorUtils.compare(o1, standardKeyOI, o2, standardKeyOI);
+        }
+      };
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("n");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        if (with_scores) {
+          fieldNames.add("with_scores");
+          fieldOIs.add(PrimitiveObjectInspectorFactory.writableBooleanObjectInspector);
+        }
+        fieldNames.add("keys");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(standardKeyOI));
+        fieldNames.add("scores");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else if (with_scores) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("key");
+        fieldOIs.add(standardKeyOI);
+        fieldNames.add("score");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs));
+      } else {
+        return ObjectInspectorFactory.getStandardListObjectInspector(standardKeyOI);
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new TopNBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      ((TopNBuffer) agg).heap = null;
+    }
+
+    private void initHeap(TopNBuffer myAgg, int N) throws HiveException {
+      if (N < 0) {
+        throw new HiveException("N must be non-negative.");
+      }
+      myAgg.heap = new TopNHeap<Object>(N, ties);
+    }
+
+    private void offer(TopNBuffer myAgg, Object key, double score) {
+      // Only copy keys which can make it into the heap.
+      if (myAgg.heap.accepts(score)) {
+        myAgg.heap.offer(ObjectInspectorUtils.copyToStandardObject(key, keyOI), score);
+      }
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      TopNBuffer myAgg = (TopNBuffer) agg;
+      if (myAgg.heap == null) {
+        if (parameters[2] == null) {
+          return;
+        }
+        initHeap(myAgg, PrimitiveObjectInspectorUtils.getInt(parameters[2], nOI));
+      }
+      if (parameters[1] == null) {
+        return;
+      }
+      offer(myAgg, parameters[0],
+            PrimitiveObjectInspectorUtils.getDouble(parameters[1], scoreOI));
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      TopNBuffer myAgg = (TopNBuffer) agg;
+      if (myAgg.heap == null) {
+        return null;
+      }
+      TopNHeap<Object> heap = myAgg.heap;
+      Object[] keys = heap.getKeys();
+      double[] scores = heap.getScores();
+      ArrayList<Object> partialKeys = new ArrayList<Object>(heap.size());
+      ArrayList<DoubleWritable> partialScores = new ArrayList<DoubleWritable>(heap.size());
+      for (int ii = 0; ii < heap.size(); ++ii) {
+        partialKeys.add(keys[ii]);
+        partialScores.add(new DoubleWritable(scores[ii]));
+      }
+      ArrayList<Object> partial = new ArrayList<Object>(4);
+      partial.add(new IntWritable(heap.getN()));
+      if (with_scores) {
+        partial.add(new BooleanWritable(true));
+      }
+      partial.add(partialKeys);
+      partial.add(partialScores);
+      return partial;
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      TopNBuffer myAgg = (TopNBuffer) agg;
+      if (myAgg.heap == null) {
+        initHeap(myAgg, PrimitiveObjectInspectorUtils.getInt(
+            partialOI.getStructFieldData(partial, partialNField), nOI));
+      }
+      Object keys = partialOI.getStructFieldData(partial, partialKeysField);
+      Object scores = partialOI.getStructFieldData(partial, partialScoresField);
+      int n = partialKeysOI.getListLength(keys);
+      for (int ii = 0; ii < n; ++ii) {
+        offer(myAgg, partialKeysOI.getListElement(keys, ii),
+              PrimitiveObjectInspectorUtils.getDouble(
+                  partialScoresOI.getListElement(scores, ii), scoreOI));
+      }
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      TopNBuffer myAgg = (TopNBuffer) agg;
+      if (myAgg.heap == null) {
+        return null;
+      }
+      TopNHeap<Object> heap = myAgg.heap;
+      heap.sort();
+      Object[] keys = heap.getKeys();
+      double[] scores = heap.getScores();
+      ArrayList<Object> result = new ArrayList<Object>(heap.size());
+      for (int ii = 0; ii < heap.size(); ++ii) {
+        if (with_scores) {
+          ArrayList<Object> pair = new ArrayList<Object>(2);
+          pair.add(keys[ii]);
+          pair.add(new DoubleWritable(scores[ii]));
+          result.add(pair);
+        } else {
+          result.add(keys[ii]);
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -12,8 +12,8 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.List;
 
 
 
@@ -39,60 +39,150 @@ public class UDAFUnionSet extends AbstractGenericUDAFResolver {
     return new Evaluator();
   }
 
+  /**
+   * The distinct elements in the order they were first seen, with an
+   * open-addressing table of their hashes.  Elements are looked up with
+   * their own ObjectInspector before being copied, so only new elements are
+   * copied.  Elements which cannot be compared (maps) fall back to a
+   * HashSet of standard copies.
+   */
   public static class State implements AggregationBuffer {
-    HashSet<Object> set = new HashSet<>();
+    ArrayList<Object> elements = new ArrayList<>();
+    int[] hashes = new int[16];
+    // Index into elements plus one, or 0 for an empty slot.
+    int[] table = new int[16];
+    HashSet<Object> set;
+
+    void clear() {
+      // terminate() hands out elements itself, which may still be read.
+      elements = new ArrayList<>();
+      if (table.length > 16) {
+        hashes = new int[16];
+        table = new int[16];
+      } else {
+        Arrays.fill(table, 0);
+      }
+      if (set != null) {
+        set.clear();
+      }
+    }
   }
 
   public static class Evaluator extends GenericUDAFEvaluator {
-    ObjectInspector inputOI;
+    ListObjectInspector inputOI;
     ListObjectInspector internalMergeOI;
+    ObjectInspector standardElementOI;
+    boolean comparable;
 
     @Override
     public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
       super.init(m, parameters);
       if (m == Mode.COMPLETE || m == Mode.PARTIAL1) {
-        inputOI = parameters[0];
+        inputOI = (ListObjectInspector) parameters[0];
       } else {
         internalMergeOI = (ListObjectInspector) parameters[0];
       }
+      ObjectInspector elementOI = ((ListObjectInspector) parameters[0]).getListElementObjectInspector();
+      standardElementOI = ObjectInspectorUtils.getStandardObjectInspector(elementOI);
+      comparable = ObjectInspectorUtils.compareSupported(elementOI);
       return ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
     }
 
     @Override
     public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-      return new State();
+      State state = new State();
+      if (!comparable) {
+        state.set = new HashSet<>();
+      }
+      return state;
+    }
+
+    private void addAll(State state, Object list, ListObjectInspector listOI) {
+      ObjectInspector elementOI = listOI.getListElementObjectInspector();
+      int n = listOI.getListLength(list);
+      for (int ii = 0; ii < n; ++ii) {
+        Object element = listOI.getListElement(list, ii);
+        if (comparable) {
+          add(state, element, elementOI);
+        } else {
+          Object copy = ObjectInspectorUtils.copyToStandardObject(element, elementOI);
+          if (state.set.add(copy)) {
+            state.elements.add(copy);
+          }
+        }
+      }
+    }
+
+    private static int spread(int h) {
+      h *= 0x9e3779b9;
+      return h ^ (h >>> 16);
+    }
+
+    private void add(State state, Object element, ObjectInspector elementOI) {
+      int hash = ObjectInspectorUtils.hashCode(element, elementOI);
+      int mask = state.table.length - 1;
+      int slot = spread(hash) & mask;
+      int index;
+      while ((index = state.table[slot]) != 0) {
+        if (state.hashes[index - 1] == hash &&
+            ObjectInspectorUtils.compare(element, elementOI,
+                                         state.elements.get(index - 1), standardElementOI) == 0) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      state.elements.add(ObjectInspectorUtils.copyToStandardObject(element, elementOI));
+      int size = state.elements.size();
+      if (size > state.hashes.length) {
+        state.hashes = Arrays.copyOf(state.hashes, 2 * state.hashes.length);
+      }
+      state.hashes[size - 1] = hash;
+      state.table[slot] = size;
+      if (size > state.table.length / 2) {
+        rehash(state);
+      }
+    }
+
+    private void rehash(State state) {
+      int[] table = new int[2 * state.table.length];
+      int mask = table.length - 1;
+      for (int index = 1; index <= state.elements.size(); ++index) {
+        int slot = spread(state.hashes[index - 1]) & mask;
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = index;
+      }
+      state.table = table;
     }
 
     @Override
     public void iterate(AggregationBuffer agg, Object[] input) throws HiveException {
       if (input[0] != null) {
-        State state = (State) agg;
-        state.set.addAll((List<?>)ObjectInspectorUtils.copyToStandardObject(input[0], inputOI));
+        addAll((State) agg, input[0], inputOI);
       }
     }
 
     @Override
     public void merge(AggregationBuffer agg, Object partial) throws HiveException {
       if (partial != null) {
-        State state = (State) agg;
-        List<?> pset = (List<?>)ObjectInspectorUtils.copyToStandardObject(partial, internalMergeOI);
-        state.set.addAll(pset);
+        addAll((State) agg, partial, internalMergeOI);
       }
     }
 
     @Override
     public void reset(AggregationBuffer agg) throws HiveException {
-      ((State) agg).set.clear();
+      ((State) agg).clear();
     }
 
     @Override
     public Object terminate(AggregationBuffer agg) throws HiveException {
-      return new ArrayList<>(((State) agg).set);
+      return ((State) agg).elements;
     }
 
     @Override
     public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-      return new ArrayList<>(((State) agg).set);
+      return ((State) agg).elements;
     }
   }
 }
@@ -1,9 +1,16 @@
 package com.facebook.hive.udf;
 
+import com.facebook.hive.udf.lib.LongDoubleMap;
+import org.apache.hadoop.hive.ql.exec.DefaultUDAFEvaluatorResolver;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDAF;
 import org.apache.hadoop.hive.ql.exec.UDAFEvaluator;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.LongWritable;
 
 import java.util.*;
@@ -14,9 +21,15 @@ import java.util.*;
  * below under the section 'Weighted percentile'.
  * http://en.wikipedia.org/wiki/Percentile
  *
- * Rows where either the weight or the value are NULL are discarded. The
- * percentile argument should be an array of values between 0 and 1; an
- * exception is thrown if this is not the case.
+ * Values may be BIGINT (or any smaller integer type), DOUBLE or DECIMAL;
+ * DECIMAL values are treated as DOUBLEs.  Each row counts as 'weight' rows of
+ * 'value', so pre-aggregated (value, count) pairs give the same result as the
+ * rows they summarize.
+ *
+ * Rows where either the weight or the value are NULL are discarded, as are
+ * rows with a zero weight and DOUBLE values which are NaN. Weights must be
+ * non-negative. The percentile argument should be an array of values between
+ * 0 and 1; an exception is thrown if either of these is not the case.
  *
  * Note that this is slightly different from a percentile computed by
  * replicating each 'value' 'weight' times, even if 'weight' is integral.  For
@@ -30,43 +43,87 @@ import java.util.*;
             " 'pc' of 'value' given 'weight'.")
 public class UDAFWeightedPercentile extends UDAF {
 
+  public UDAFWeightedPercentile() {
+    super(new Resolver());
+  }
+
   /**
-   * A state class to store intermediate aggregation results.
+   * Integer values could be converted to any of BIGINT, DOUBLE or DECIMAL, so
+   * the default resolver finds them ambiguous; send them to the BIGINT
+   * evaluator.
+   */
+  public static class Resolver extends DefaultUDAFEvaluatorResolver {
+    public Resolver() {
+      super(UDAFWeightedPercentile.class);
+    }
+
+    @Override
+    public Class<? extends UDAFEvaluator> getEvaluatorClass(
+        List<TypeInfo> argClasses) throws UDFArgumentException {
+      TypeInfo value = argClasses.get(0);
+      if (value.getCategory() == ObjectInspector.Category.PRIMITIVE) {
+        switch (((PrimitiveTypeInfo) value).getPrimitiveCategory()) {
+        case BYTE:
+        case SHORT:
+        case INT:
+        case LONG:
+          return PercentileLongArrayEvaluator.class;
+        default:
+          break;
+        }
+      }
+      return super.getEvaluatorClass(argClasses);
+    }
+  }
+
+  /**
+   * A state class to store intermediate aggregation results.  The counts are
+   * a serialized LongDoubleMap from values, or for DOUBLE and DECIMAL values
+   * their sortable bits, to weights.
    */
   public static class State {
-    private Map<LongWritable, DoubleWritable> counts;
+    private byte[] counts;
     private List<DoubleWritable> percentiles;
   }
 
   /**
-   * A comparator to sort the entries in order.
+   * Map a double to a long which sorts in the same order.  The mapping is its
+   * own inverse.
    */
-  public static class MyComparator
-      implements Comparator<Map.Entry<LongWritable, DoubleWritable>> {
-    @Override
-    public int compare(Map.Entry<LongWritable, DoubleWritable> o1,
-        Map.Entry<LongWritable, DoubleWritable> o2) {
-      return o1.getKey().compareTo(o2.getKey());
+  private static long sortableBits(long bits) {
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  private static long doubleKey(double o) {
+    // Fold -0.0 into 0.0, which would otherwise get a key of its own.
+    return sortableBits(Double.doubleToLongBits(o + 0.0));
+  }
+
+  /**
+   * Check the percentiles argument and return a copy of it.
+   */
+  private static List<DoubleWritable> checkPercentiles(
+      List<DoubleWritable> percentiles) {
+    for (int i = 0; i < percentiles.size(); i++) {
+      if (percentiles.get(i).get() < 0.0 ||
+          percentiles.get(i).get() > 1.0) {
+        throw new RuntimeException("Percentile value must be in [0,1]");
+      }
     }
+    return new ArrayList<DoubleWritable>(percentiles);
   }
 
   /**
-   * Increment the State object with o as the key, and i as the count.
+   * Check a row's weight.  Returns false if the row should be discarded.
    */
-  private static void increment(State s, LongWritable o, double i) {
-    if (s.counts == null) {
-      s.counts = new HashMap<LongWritable, DoubleWritable>();
-    }
-    DoubleWritable count = s.counts.get(o);
-    if (count == null) {
-      // We have to create a new object, because the object o belongs
-      // to the code that creates it and may get its value changed.
-      LongWritable key = new LongWritable();
-      key.set(o.get());
-      s.counts.put(key, new DoubleWritable(i));
-    } else {
-      count.set(count.get() + i);
+  private static boolean checkWeight(DoubleWritable w) {
+    if (w == null) {
+      return false;
     }
+    if (!(w.get() >= 0.0)) {
+      throw new RuntimeException("Weights must be non-negative");
+    }
+    return w.get() > 0.0;
   }
 
   /**
@@ -77,35 +134,42 @@ public class UDAFWeightedPercentile extends UDAF {
    *   v = v_k + (p - p_k) / (p_{k+1} - p_k) (v_{k+1} - v_{k})
    *
    * 'position' here is equivalent to S_N p / 100, denote this by P
-   * Each entry in 'entriesList', e_n, is equal to S_n - w_n / 2
+   * Each entry in 'midpoints', e_n, is equal to S_n - w_n / 2, and 'values'
+   * holds the v_n in ascending order.
    */
-  private static double getPercentile(
-      List<Map.Entry<LongWritable, DoubleWritable>> entriesList,
-      double position) {
-    int k = 0;
-    // while p_k < p
-    //    => p_k S_N / 100 < p S_N / 100 = P
-    //    => (S_k - w_k / 2) <  P
-    //    => e_k < P
-    while (k < entriesList.size() && 
-           entriesList.get(k).getValue().get() < position) {
-      k++;
-    }
-    if (k == entriesList.size()) {
-      return entriesList.get(k - 1).getKey().get();
+  private static double getPercentile(double[] values, double[] midpoints,
+                                      int size, double position) {
+    // Binary search for the first k with p_k >= p
+    //    => p_k S_N / 100 >= p S_N / 100 = P
+    //    => (S_k - w_k / 2) >= P
+    //    => e_k >= P
+    // which exists at most once since the e_k are increasing.
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (midpoints[mid] < position) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    int k = lo;
+    if (k == size) {
+      return values[k - 1];
     }
 
     // p_k >= p
-    double e_k = entriesList.get(k).getValue().get();
-    long v_k = entriesList.get(k).getKey().get();
+    double e_k = midpoints[k];
+    double v_k = values[k];
     if (e_k == position || k == 0) {
       return v_k;
     }
 
     // Need to interpolate since:
     // p_{k - 1} < p < p_k
-    double e_km1 = entriesList.get(k - 1).getValue().get();
-    long v_km1 = entriesList.get(k - 1).getKey().get();
+    double e_km1 = midpoints[k - 1];
+    double v_km1 = values[k - 1];
 
 
     // p_{k+1} - p_k
@@ -116,99 +180,227 @@ public class UDAFWeightedPercentile extends UDAF {
     return v_km1 + (position - e_km1) / (e_k - e_km1) * (v_k - v_km1);
   }
 
+  /**
+   * Set results to the percentiles of the size values in 'values', which must
+   * be sorted in ascending order, with the weights in 'counts'.  The counts
+   * are overwritten with the cumulative midpoints.
+   */
+  private static List<DoubleWritable> setPercentiles(
+      double[] values, double[] counts, int size,
+      List<DoubleWritable> percentiles, List<DoubleWritable> results) {
+    // accumulate the counts
+    double total = 0.0;
+    for (int i = 0; i < size; i++) {
+      double count = counts[i];
+      total += count;
+      counts[i] = total - count / 2;
+    }
+
+    // Initialize the results
+    if (results == null) {
+      results = new ArrayList<DoubleWritable>();
+      for (int i = 0; i < percentiles.size(); i++) {
+        results.add(new DoubleWritable());
+      }
+    }
+    // Set the results
+    for (int i = 0; i < percentiles.size(); i++) {
+      double position = total * percentiles.get(i).get();
+      results.get(i).set(getPercentile(values, counts, size, position));
+    }
+    return results;
+  }
+
+  /**
+   * The aggregation shared by the evaluators, keyed by longs.
+   */
+  private static class Aggregation {
+    private final State state = new State();
+    private final LongDoubleMap counts = new LongDoubleMap();
+    // Whether the keys are the sortable bits of doubles.
+    private final boolean doubles;
+
+    private List<DoubleWritable> results;
+    // Scratch space for terminate, reused across groups.
+    private double[] values;
+    private double[] midpoints;
+
+    Aggregation(boolean doubles) {
+      this.doubles = doubles;
+    }
+
+    void init() {
+      // We reuse the same table to reduce new object allocation.
+      counts.clear();
+    }
+
+    void iterate(long key, double weight, List<DoubleWritable> percentiles) {
+      if (state.percentiles == null) {
+        state.percentiles = checkPercentiles(percentiles);
+      }
+      counts.add(key, weight);
+    }
+
+    State terminatePartial() {
+      state.counts = counts.toBytes();
+      return state;
+    }
+
+    boolean merge(State other) {
+      if (other == null || other.counts == null || other.percentiles == null) {
+        return true;
+      }
+
+      if (state.percentiles == null) {
+        state.percentiles = new ArrayList<DoubleWritable>(other.percentiles);
+      }
+
+      counts.addBytes(other.counts, 0, other.counts.length);
+      return true;
+    }
+
+    List<DoubleWritable> terminate() {
+      // No input data
+      int size = counts.size();
+      if (size == 0) {
+        return null;
+      }
+
+      // Sort the table in place, then copy out the values and the counts,
+      // which setPercentiles overwrites.
+      counts.sort();
+      long[] keys = counts.getKeys();
+      double[] weights = counts.getValues();
+      if (values == null || values.length < size) {
+        values = new double[size];
+        midpoints = new double[size];
+      }
+      for (int i = 0; i < size; i++) {
+        values[i] = doubles ?
+          Double.longBitsToDouble(sortableBits(keys[i])) : keys[i];
+      }
+      System.arraycopy(weights, 0, midpoints, 0, size);
+
+      results = setPercentiles(values, midpoints, size, state.percentiles, results);
+      return results;
+    }
+  }
+
   /**
    * The evaluator for percentile computation based on long for an array of
    * percentiles.
    */
   public static class PercentileLongArrayEvaluator implements UDAFEvaluator {
 
-    private final State state;
+    private final Aggregation aggregation;
 
     public PercentileLongArrayEvaluator() {
-      state = new State();
+      aggregation = new Aggregation(false);
     }
 
     public void init() {
-      if (state.counts != null) {
-        // We reuse the same hashmap to reduce new object allocation.
-        // This means counts can be empty when there is no input data.
-        state.counts.clear();
-      }
+      aggregation.init();
     }
 
     public boolean iterate(LongWritable o, DoubleWritable w, 
                            List<DoubleWritable> percentiles) {
-      if (state.percentiles == null) {
-        for (int i = 0; i < percentiles.size(); i++) {
-          if (percentiles.get(i).get() < 0.0 ||
-              percentiles.get(i).get() > 1.0) {
-            throw new RuntimeException("Percentile value must be in [0,1]");
-          }
+      if (checkWeight(w)) {
+        if (o != null) {
+          aggregation.iterate(o.get(), w.get(), percentiles);
         }
-        state.percentiles = new ArrayList<DoubleWritable>(percentiles);
-      }
-      if (o != null) {
-        increment(state, o, 1);
       }
       return true;
     }
 
     public State terminatePartial() {
-      return state;
+      return aggregation.terminatePartial();
     }
 
     public boolean merge(State other) {
-      if (other == null || other.counts == null || other.percentiles == null) {
-        return true;
-      }
+      return aggregation.merge(other);
+    }
 
-      if (state.percentiles == null) {
-        state.percentiles = new ArrayList<DoubleWritable>(other.percentiles);
-      }
+    public List<DoubleWritable> terminate() {
+      return aggregation.terminate();
+    }
+  }
+
+  /**
+   * The evaluator for percentile computation based on double for an array of
+   * percentiles.
+   */
+  public static class PercentileDoubleArrayEvaluator implements UDAFEvaluator {
 
-      for (Map.Entry<LongWritable, DoubleWritable> e: other.counts.entrySet()) {
-        increment(state, e.getKey(), e.getValue().get());
+    private final Aggregation aggregation;
+
+    public PercentileDoubleArrayEvaluator() {
+      aggregation = new Aggregation(true);
+    }
+
+    public void init() {
+      aggregation.init();
+    }
+
+    public boolean iterate(DoubleWritable o, DoubleWritable w,
+                           List<DoubleWritable> percentiles) {
+      if (checkWeight(w)) {
+        if (o != null && !Double.isNaN(o.get())) {
+          aggregation.iterate(doubleKey(o.get()), w.get(), percentiles);
+        }
       }
       return true;
     }
 
+    public State terminatePartial() {
+      return aggregation.terminatePartial();
+    }
 
-    private List<DoubleWritable> results;
+    public boolean merge(State other) {
+      return aggregation.merge(other);
+    }
 
     public List<DoubleWritable> terminate() {
-      // No input data
-      if (state.counts == null || state.counts.size() == 0) {
-        return null;
-      }
+      return aggregation.terminate();
+    }
+  }
 
-      // Get all items into an array and sort them
-      Set<Map.Entry<LongWritable, DoubleWritable>> entries = 
-        state.counts.entrySet();
-      List<Map.Entry<LongWritable, DoubleWritable>> entriesList =
-        new ArrayList<Map.Entry<LongWritable, DoubleWritable>>(entries);
-      Collections.sort(entriesList, new MyComparator());
-
-      // accumulate the counts
-      double total = 0.0;
-      for (int i = 0; i < entriesList.size(); i++) {
-        DoubleWritable count = entriesList.get(i).getValue();
-        total += count.get();
-        count.set(total - count.get() / 2);
-      }
+  /**
+   * The evaluator for percentile computation based on decimal for an array of
+   * percentiles.  The values are aggregated as doubles.
+   */
+  public static class PercentileDecimalArrayEvaluator implements UDAFEvaluator {
+
+    private final Aggregation aggregation;
+
+    public PercentileDecimalArrayEvaluator() {
+      aggregation = new Aggregation(true);
+    }
 
-      // Initialize the results
-      if (results == null) {
-        results = new ArrayList<DoubleWritable>();
-        for (int i = 0; i < state.percentiles.size(); i++) {
-          results.add(new DoubleWritable());
+    public void init() {
+      aggregation.init();
+    }
+
+    public boolean iterate(HiveDecimalWritable o, DoubleWritable w,
+                           List<DoubleWritable> percentiles) {
+      if (checkWeight(w)) {
+        if (o != null) {
+          aggregation.iterate(doubleKey(o.getHiveDecimal().doubleValue()),
+                              w.get(), percentiles);
         }
       }
-      // Set the results
-      for (int i = 0; i < state.percentiles.size(); i++) {
-        double position = total * state.percentiles.get(i).get();
-        results.get(i).set(getPercentile(entriesList, position));
-      }
-      return results;
+      return true;
+    }
+
+    public State terminatePartial() {
+      return aggregation.terminatePartial();
+    }
+
+    public boolean merge(State other) {
+      return aggregation.merge(other);
+    }
+
+    public List<DoubleWritable> terminate() {
+      return aggregation.terminate();
     }
   }
 }
@@ -0,0 +1,269 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.TDigest;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Approximate weighted percentiles with bounded memory.  Takes the same
+ * arguments as PERCENTILE (UDAFWeightedPercentile) plus an optional
+ * compression, and uses the same definition of a weighted percentile, but
+ * summarizes the values with a t-digest (see lib.TDigest) instead of keeping
+ * one entry per distinct value.  Memory per group and the partial aggregation
+ * are bounded by about compression centroids (16 bytes each) regardless of the
+ * number of distinct values, which makes this suitable for high-cardinality
+ * columns such as latencies.  Larger compressions are more accurate; the
+ * default is 100.  With at most compression distinct values the result is the
+ * same as PERCENTILE's.
+ *
+ * Rows where either the weight or the value are NULL are discarded.  Values
+ * may be of any numeric type.  Weights must be non-negative and percentiles
+ * must be in [0, 1]; an exception is thrown otherwise.
+ */
+@Description(name = "percentile_approx_w",
+    value = "_FUNC_(value, weight, pc[, compression]) - Returns the approximate" +
+            " weighted percentiles at 'pc' of 'value' given 'weight'.")
+public class UDAFWeightedPercentileApprox extends AbstractGenericUDAFResolver {
+
+  @Override
+  public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+    throws SemanticException {
+    if (parameters.length != 3 && parameters.length != 4) {
+      throw new UDFArgumentTypeException(parameters.length - 1,
+          "Three or four arguments are expected.");
+    }
+    if (!isNumeric(parameters[0])) {
+      throw new UDFArgumentTypeException(0,
+          "The value must be a number.");
+    }
+    if (!isNumeric(parameters[1])) {
+      throw new UDFArgumentTypeException(1,
+          "The weight must be a number.");
+    }
+    if (parameters[2].getCategory() != ObjectInspector.Category.LIST ||
+        !isNumeric(((ListTypeInfo) parameters[2]).getListElementTypeInfo())) {
+      throw new UDFArgumentTypeException(2,
+          "The percentiles must be an array of numbers.");
+    }
+    if (parameters.length == 4 && !isNumeric(parameters[3])) {
+      throw new UDFArgumentTypeException(3,
+          "The compression must be a number.");
+    }
+    return new Evaluator();
+  }
+
+  static boolean isNumeric(TypeInfo type) {
+    if (type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+      return false;
+    }
+    switch (((PrimitiveTypeInfo) type).getPrimitiveCategory()) {
+    case BYTE:
+    case SHORT:
+    case INT:
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+    case DECIMAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * The partial aggregation is a struct of the requested percentiles and the
+   * serialized digest.
+   */
+  public static class Evaluator extends GenericUDAFEvaluator {
+    // For PARTIAL1 and COMPLETE.
+    private PrimitiveObjectInspector valueOI;
+    private PrimitiveObjectInspector weightOI;
+    private ListObjectInspector percentilesOI;
+    private PrimitiveObjectInspector percentileOI;
+    private PrimitiveObjectInspector compressionOI;
+
+    // For PARTIAL2 and FINAL.
+    private StructObjectInspector partialOI;
+    private StructField partialPercentilesField;
+    private StructField partialDigestField;
+    private ListObjectInspector partialPercentilesOI;
+    private PrimitiveObjectInspector partialPercentileOI;
+    private BinaryObjectInspector partialDigestOI;
+
+    public static class DigestBuffer implements AggregationBuffer {
+      TDigest digest;
+      double[] percentiles;
+    }
+
+    @Override
+    public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+      throws HiveException {
+      super.init(m, parameters);
+
+      if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+        valueOI = (PrimitiveObjectInspector) parameters[0];
+        weightOI = (PrimitiveObjectInspector) parameters[1];
+        percentilesOI = (ListObjectInspector) parameters[2];
+        percentileOI = (PrimitiveObjectInspector) percentilesOI.getListElementObjectInspector();
+        if (parameters.length > 3) {
+          compressionOI = (PrimitiveObjectInspector) parameters[3];
+        }
+      } else {
+        partialOI = (StructObjectInspector) parameters[0];
+        partialPercentilesField = partialOI.getStructFieldRef("percentiles");
+        partialDigestField = partialOI.getStructFieldRef("digest");
+        partialPercentilesOI = (ListObjectInspector) partialPercentilesField.getFieldObjectInspector();
+        partialPercentileOI = (PrimitiveObjectInspector) partialPercentilesOI.getListElementObjectInspector();
+        partialDigestOI = (BinaryObjectInspector) partialDigestField.getFieldObjectInspector();
+      }
+
+      if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        fieldNames.add("percentiles");
+        fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+        fieldNames.add("digest");
+        fieldOIs.add(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+      } else {
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+      }
+    }
+
+    @Override
+    public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+      return new DigestBuffer();
+    }
+
+    @Override
+    public void reset(AggregationBuffer agg) throws HiveException {
+      DigestBuffer myAgg = (DigestBuffer) agg;
+      myAgg.digest = null;
+      myAgg.percentiles = null;
+    }
+
+    private static double[] getPercentiles(Object list, ListObjectInspector listOI,
+                                           PrimitiveObjectInspector elementOI)
+      throws HiveException {
+      int n = listOI.getListLength(list);
+      double[] percentiles = new double[n];
+      for (int ii = 0; ii < n; ++ii) {
+        Object element = listOI.getListElement(list, ii);
+        double percentile = element == null ? Double.NaN :
+          PrimitiveObjectInspectorUtils.getDouble(element, elementOI);
+        if (!(percentile >= 0.0 && percentile <= 1.0)) {
+          throw new HiveException("Percentile value must be in [0,1]");
+        }
+        percentiles[ii] = percentile;
+      }
+      return percentiles;
+    }
+
+    @Override
+    public void iterate(AggregationBuffer agg, Object[] parameters)
+      throws HiveException {
+      DigestBuffer myAgg = (DigestBuffer) agg;
+      if (myAgg.digest == null) {
+        if (parameters[2] == null) {
+          return;
+        }
+        double compression = TDigest.DEFAULT_COMPRESSION;
+        if (compressionOI != null && parameters[3] != null) {
+          compression = PrimitiveObjectInspectorUtils.getDouble(parameters[3], compressionOI);
+        }
+        try {
+          myAgg.digest = new TDigest(compression);
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+        myAgg.percentiles = getPercentiles(parameters[2], percentilesOI, percentileOI);
+      }
+
+      if (parameters[0] == null || parameters[1] == null) {
+        return;
+      }
+      double weight = PrimitiveObjectInspectorUtils.getDouble(parameters[1], weightOI);
+      // NaN fails this too, and would otherwise poison the whole digest.
+      if (!(weight >= 0.0)) {
+        throw new HiveException("Weights must be non-negative.");
+      }
+      if (weight == 0.0) {
+        return;
+      }
+      myAgg.digest.add(PrimitiveObjectInspectorUtils.getDouble(parameters[0], valueOI), weight);
+    }
+
+    @Override
+    public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+      DigestBuffer myAgg = (DigestBuffer) agg;
+      if (myAgg.digest == null) {
+        return null;
+      }
+      ArrayList<DoubleWritable> percentiles = new ArrayList<DoubleWritable>();
+      for (double percentile : myAgg.percentiles) {
+        percentiles.add(new DoubleWritable(percentile));
+      }
+      ArrayList<Object> partial = new ArrayList<Object>(2);
+      partial.add(percentiles);
+      partial.add(new BytesWritable(myAgg.digest.toBytes()));
+      return partial;
+    }
+
+    @Override
+    public void merge(AggregationBuffer agg, Object partial)
+      throws HiveException {
+      if (partial == null) {
+        return;
+      }
+      DigestBuffer myAgg = (DigestBuffer) agg;
+      BytesWritable bytes = partialDigestOI.getPrimitiveWritableObject(
+          partialOI.getStructFieldData(partial, partialDigestField));
+      if (myAgg.digest == null) {
+        myAgg.digest = new TDigest(
+            TDigest.compressionOf(bytes.getBytes(), 0, bytes.getLength()));
+        myAgg.percentiles = getPercentiles(
+            partialOI.getStructFieldData(partial, partialPercentilesField),
+            partialPercentilesOI, partialPercentileOI);
+      }
+      myAgg.digest.addBytes(bytes.getBytes(), 0, bytes.getLength());
+    }
+
+    @Override
+    public Object terminate(AggregationBuffer agg) throws HiveException {
+      DigestBuffer myAgg = (DigestBuffer) agg;
+      if (myAgg.digest == null || myAgg.digest.getTotalWeight() == 0) {
+        return null;
+      }
+      double[] values = myAgg.digest.quantiles(myAgg.percentiles);
+      List<DoubleWritable> result = new ArrayList<DoubleWritable>(values.length);
+      for (double value : values) {
+        result.add(new DoubleWritable(value));
+      }
+      return result;
+    }
+  }
+}
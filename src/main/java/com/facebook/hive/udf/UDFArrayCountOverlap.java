@@ -1,10 +1,10 @@
 package com.facebook.hive.udf;
 
+import com.facebook.hive.udf.lib.SetOps;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * ArrayCountOverlap counts how many items in one array are also
@@ -15,6 +15,10 @@ import java.util.HashMap;
  * unknown thing in it.
  *
  * If arr1 is empty, overlap is 0.
+ *
+ * Repeated items count as many times as they are in both arrays; see
+ * SetOps.overlapCount for how the count avoids building a hash table when
+ * the arrays are tiny or sorted.
  */
 
 @Description(name = "udfarraycountoverlap",
@@ -23,33 +27,6 @@ import java.util.HashMap;
 
     public Integer evaluate(ArrayList<String> arr1, ArrayList<String> arr2) {
       if (arr1 == null || arr2 == null) return 0;
-      return arr1.size() > arr2.size() ? evaluate2(arr2, arr1) : evaluate2(arr1, arr2);
+      return SetOps.overlapCount(arr1, arr2);
     }
-
-    public Integer evaluate2(ArrayList<String> arr1, ArrayList<String> arr2) {
-      // Be greedy, but not too greedy...limit map to 100M buckets but try for
-      // 1000 buckets per potentially-used item. Should keep us under our
-      // allotted default -Xmx512MB.
-      Integer capacity = arr1.size() > 10485 ? 104857600 : arr1.size()*1000;
-      HashMap<String, Integer> m = new HashMap<String, Integer>(capacity, (float) 1.0);
-      
-      Integer result = 0;
-      for (String key : arr1) {
-        if (key != null) {
-          m.put(key, m.containsKey(key) ? m.get(key) + 1 : 1);
-        }
-      }
-
-      Integer val;
-      for (String key : arr2) {
-        if (key != null) {
-          if (m.containsKey(key) && (val = m.get(key)) > 0) {
-            result++;
-            m.put(key, val - 1);
-          }
-        }
-      }
-      return result;
-    }
-
   }
@@ -0,0 +1,93 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.BloomFilter;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Tests whether x might be among the values of a Bloom filter built by
+ * BLOOM_AGG.  False means x was certainly not added; true may be a false
+ * positive, at about the rate the filter was built for.  If the filter is a
+ * constant it is deserialized once per task, and otherwise it is read in
+ * place; either way a probe costs a handful of hash operations however large
+ * the filter is.
+ */
+@Description(name = "bloom_contains",
+             value = "_FUNC_(filter, x) - Returns whether x might be in a filter built by bloom_agg.")
+  public class UDFBloomContains extends GenericUDF {
+    private BinaryObjectInspector filterOI;
+    private PrimitiveObjectInspector xOI;
+    private BloomFilter constantFilter;
+    private final BooleanWritable result = new BooleanWritable();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 2) {
+        throw new UDFArgumentLengthException("BLOOM_CONTAINS expects two arguments.");
+      }
+      if (!arguments[0].getCategory().equals(Category.PRIMITIVE) ||
+          ((PrimitiveObjectInspector) arguments[0]).getPrimitiveCategory() != PrimitiveCategory.BINARY) {
+        throw new UDFArgumentTypeException(0, "BLOOM_CONTAINS expects a BINARY filter as its first argument");
+      }
+      if (!arguments[1].getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(1, "BLOOM_CONTAINS expects a primitive value as its second argument");
+      }
+      filterOI = (BinaryObjectInspector) arguments[0];
+      xOI = (PrimitiveObjectInspector) arguments[1];
+
+      constantFilter = null;
+      if (arguments[0] instanceof ConstantObjectInspector) {
+        Object filter = ((ConstantObjectInspector) arguments[0]).getWritableConstantValue();
+        if (filter != null) {
+          BytesWritable bytes = filterOI.getPrimitiveWritableObject(filter);
+          try {
+            constantFilter = BloomFilter.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+          } catch (RuntimeException e) {
+            throw new UDFArgumentTypeException(0, "BLOOM_CONTAINS expects a filter built by BLOOM_AGG.");
+          }
+        }
+      }
+      return PrimitiveObjectInspectorFactory.writableBooleanObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object filter = arguments[0].get();
+      Object x = arguments[1].get();
+      if (filter == null || x == null) {
+        return null;
+      }
+      long hash = PrimitiveHash.hash64(x, xOI, UDAFBloomFilter.SEED);
+      if (constantFilter != null) {
+        result.set(constantFilter.mightContain(hash));
+        return result;
+      }
+      BytesWritable bytes = filterOI.getPrimitiveWritableObject(filter);
+      try {
+        result.set(BloomFilter.mightContain(bytes.getBytes(), 0, bytes.getLength(), hash));
+      } catch (RuntimeException e) {
+        throw new HiveException("BLOOM_CONTAINS expects a filter built by BLOOM_AGG.");
+      }
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 2);
+      return "bloom_contains(" + children[0] + ", " + children[1] + ")";
+    }
+  }
@@ -0,0 +1,72 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.CountMinSketch;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+/**
+ * Looks up the approximate number of times key occurred in a Count-Min sketch
+ * built by CMS_AGG.  The estimate is never too low; see UDAFCountMinSketch
+ * for how far above the true count it may be.  The sketch is read in place,
+ * so a lookup costs O(depth) however large the sketch is.
+ */
+@Description(name = "cms_estimate",
+             value = "_FUNC_(sketch, key) - Returns the estimated frequency of key in a sketch built by cms_agg.")
+  public class UDFCountMinEstimate extends GenericUDF {
+    private BinaryObjectInspector sketchOI;
+    private PrimitiveObjectInspector keyOI;
+    private final LongWritable result = new LongWritable();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 2) {
+        throw new UDFArgumentLengthException("CMS_ESTIMATE expects two arguments.");
+      }
+      if (!arguments[0].getCategory().equals(Category.PRIMITIVE) ||
+          ((PrimitiveObjectInspector) arguments[0]).getPrimitiveCategory() != PrimitiveCategory.BINARY) {
+        throw new UDFArgumentTypeException(0, "CMS_ESTIMATE expects a BINARY sketch as its first argument");
+      }
+      if (!arguments[1].getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(1, "CMS_ESTIMATE expects a primitive key as its second argument");
+      }
+      sketchOI = (BinaryObjectInspector) arguments[0];
+      keyOI = (PrimitiveObjectInspector) arguments[1];
+      return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object sketch = arguments[0].get();
+      Object key = arguments[1].get();
+      if (sketch == null || key == null) {
+        return null;
+      }
+      BytesWritable bytes = sketchOI.getPrimitiveWritableObject(sketch);
+      try {
+        result.set(CountMinSketch.estimate(bytes.getBytes(), 0, bytes.getLength(),
+            PrimitiveHash.hash64(key, keyOI, UDAFCountMinSketch.SEED)));
+      } catch (RuntimeException e) {
+        throw new HiveException("CMS_ESTIMATE expects a sketch built by CMS_AGG.");
+      }
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 2);
+      return "cms_estimate(" + children[0] + ", " + children[1] + ")";
+    }
+  }
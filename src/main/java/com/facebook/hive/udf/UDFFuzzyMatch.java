@@ -0,0 +1,163 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.LevenshteinTrie;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the terms of a dictionary nearest to s in Levenshtein distance, if
+ * any are within max_dist, e.g. for correcting typos without cross joining
+ * the input with the dictionary and computing UDFLEVENSHTEIN on every pair.
+ * Returns every term at the nearest distance, in order, or an empty array if
+ * none is within max_dist; NULL s or max_dist give NULL.
+ *
+ * The dictionary must be a constant: either an array of terms, or the path
+ * of a UTF-8 file of one term per line, which is shipped to the tasks with
+ * the query.  The dictionary is indexed in a trie (see lib.LevenshteinTrie)
+ * the first time it is needed in each task, and lookups then only compare s
+ * to a small part of it.
+ */
+@Description(name = "fuzzy_match",
+             value = "_FUNC_(s, dictionary_file_or_array, max_dist) - Returns the terms of the dictionary " +
+                     "nearest to s if they are within max_dist edits of it.")
+  public class UDFFuzzyMatch extends GenericUDF {
+    private PrimitiveObjectInspector sOI;
+    private PrimitiveObjectInspector maxDistOI;
+    private String dictionaryFile;
+    private List<String> dictionaryTerms;
+    private LevenshteinTrie trie;
+    private final ArrayList<Text> result = new ArrayList<Text>();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 3) {
+        throw new UDFArgumentLengthException("FUZZY_MATCH expects three arguments.");
+      }
+      if (!arguments[0].getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(0, "FUZZY_MATCH expects a STRING as its first argument");
+      }
+      if (!(arguments[1] instanceof ConstantObjectInspector)) {
+        throw new UDFArgumentTypeException(1, "FUZZY_MATCH expects a constant dictionary as its second argument");
+      }
+      if (!arguments[2].getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(2, "FUZZY_MATCH expects an integer max_dist as its third argument");
+      }
+      sOI = (PrimitiveObjectInspector) arguments[0];
+      maxDistOI = (PrimitiveObjectInspector) arguments[2];
+
+      Object dictionary = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue();
+      if (dictionary == null) {
+        throw new UDFArgumentTypeException(1, "FUZZY_MATCH expects a non-NULL dictionary");
+      }
+      dictionaryFile = null;
+      dictionaryTerms = null;
+      if (arguments[1].getCategory().equals(Category.PRIMITIVE)) {
+        dictionaryFile = PrimitiveObjectInspectorUtils.getString(
+            dictionary, (PrimitiveObjectInspector) arguments[1]);
+      } else if (arguments[1].getCategory().equals(Category.LIST) &&
+                 ((ListObjectInspector) arguments[1]).getListElementObjectInspector()
+                     .getCategory().equals(Category.PRIMITIVE)) {
+        ListObjectInspector listOI = (ListObjectInspector) arguments[1];
+        PrimitiveObjectInspector elementOI =
+            (PrimitiveObjectInspector) listOI.getListElementObjectInspector();
+        dictionaryTerms = new ArrayList<String>();
+        for (int ii = 0; ii < listOI.getListLength(dictionary); ++ii) {
+          Object term = listOI.getListElement(dictionary, ii);
+          if (term != null) {
+            dictionaryTerms.add(PrimitiveObjectInspectorUtils.getString(term, elementOI));
+          }
+        }
+      } else {
+        throw new UDFArgumentTypeException(1, "FUZZY_MATCH expects a file name or an array of terms as its dictionary");
+      }
+      trie = null;
+      return ObjectInspectorFactory.getStandardListObjectInspector(
+          PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+    }
+
+    @Override
+    public String[] getRequiredFiles() {
+      return dictionaryFile == null ? null : new String[] {dictionaryFile};
+    }
+
+    private LevenshteinTrie buildTrie() throws HiveException {
+      LevenshteinTrie trie = new LevenshteinTrie();
+      if (dictionaryTerms != null) {
+        for (String term : dictionaryTerms) {
+          trie.add(term);
+        }
+        return trie;
+      }
+      // In a task the file is in the working directory; on the client it is
+      // wherever the query says.
+      File file = new File(dictionaryFile);
+      if (!file.exists()) {
+        file = new File(file.getName());
+      }
+      try {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try {
+          String line;
+          while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+              trie.add(line);
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new HiveException("FUZZY_MATCH could not read the dictionary " + dictionaryFile, e);
+      }
+      return trie;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object s = arguments[0].get();
+      Object maxDist = arguments[2].get();
+      if (s == null || maxDist == null) {
+        return null;
+      }
+      if (trie == null) {
+        trie = buildTrie();
+      }
+      List<String> terms = trie.nearest(PrimitiveObjectInspectorUtils.getString(s, sOI),
+          PrimitiveObjectInspectorUtils.getInt(maxDist, maxDistOI));
+      result.clear();
+      for (String term : terms) {
+        result.add(new Text(term));
+      }
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 3);
+      return "fuzzy_match(" + children[0] + ", " + children[1] + ", " + children[2] + ")";
+    }
+  }
@@ -0,0 +1,63 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.HyperLogLog;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+/**
+ * Estimates the number of distinct values counted by a HyperLogLog sketch
+ * built by HLL_AGG or HLL_UNION.  See UDAFHyperLogLog for the accuracy.
+ */
+@Description(name = "hll_cardinality",
+             value = "_FUNC_(sketch) - Returns the estimated number of distinct values in a sketch built by hll_agg.")
+  public class UDFHyperLogLogCardinality extends GenericUDF {
+    private BinaryObjectInspector sketchOI;
+    private final LongWritable result = new LongWritable();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 1) {
+        throw new UDFArgumentLengthException("HLL_CARDINALITY expects one argument.");
+      }
+      if (!arguments[0].getCategory().equals(Category.PRIMITIVE) ||
+          ((PrimitiveObjectInspector) arguments[0]).getPrimitiveCategory() != PrimitiveCategory.BINARY) {
+        throw new UDFArgumentTypeException(0, "HLL_CARDINALITY expects a BINARY sketch as its argument");
+      }
+      sketchOI = (BinaryObjectInspector) arguments[0];
+      return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object sketch = arguments[0].get();
+      if (sketch == null) {
+        return null;
+      }
+      BytesWritable bytes = sketchOI.getPrimitiveWritableObject(sketch);
+      try {
+        result.set(HyperLogLog.fromBytes(bytes.getBytes(), 0, bytes.getLength()).cardinality());
+      } catch (RuntimeException e) {
+        throw new HiveException("HLL_CARDINALITY expects a sketch built by HLL_AGG.");
+      }
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 1);
+      return "hll_cardinality(" + children[0] + ")";
+    }
+  }
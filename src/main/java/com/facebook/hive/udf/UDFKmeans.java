@@ -1,11 +1,14 @@
 package com.facebook.hive.udf;
 
+import com.facebook.hive.udf.lib.KMeans;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -17,14 +20,33 @@ import java.util.ArrayList;
  * bound on the number of iterations the procedure will execute (see below).
  * Note that since all the points are passed in as an array, this is a UDF and
  * not a UDAF.  If you wish to perform K-means where the points are distributed
- * across multiple rows, use FB_COLLECT to assemble the points into a single
- * row.
+ * across multiple rows, use KMEANS_AGG, which clusters a bounded sketch of the
+ * points instead of collecting them all into a single row.
  *
  * The algorithm used here first selects initial cluster centers using the
  * K-means++ heuristic.  Then the standard Lloyd's algorithm is performed until
  * convergence or max_iterations iterations have elapsed.
  *
- * If any arguments are NULL then NULL is returned.
+ * An optional fourth argument selects how points are assigned to centers in
+ * each iteration: 'lloyd' (the default) computes every point-to-center
+ * distance, while 'hamerly' and 'elkan' maintain triangle-inequality bounds to
+ * skip distances that cannot change the assignment.  All three give identical
+ * results; 'hamerly' is usually fastest for low-dimensional points and 'elkan'
+ * for many clusters in high dimensions, at the cost of N * K extra DOUBLEs.
+ *
+ * An optional fifth argument gives the number of threads to use for the
+ * assignment and mean updates on large inputs (the default, 1, runs in the
+ * calling thread).  The points are split into fixed-size blocks whose partial
+ * sums are always combined in the same order, so the result does not depend
+ * on the number of threads.
+ *
+ * An optional sixth argument seeds the random number generator used by
+ * K-means++, so that rerunning a query over the same points in the same order
+ * returns the same clusters.  Without it every run picks different initial
+ * centers.
+ *
+ * If any of the first three arguments are NULL then NULL is returned.  A NULL
+ * algorithm, number of threads or seed selects the default.
  *
  * The return value is an array of cluster centers.  Each center is an array of
  * DOUBLEs whose size is two greater than the dimensionality of the inputs.
@@ -36,56 +58,65 @@ import java.util.ArrayList;
  * points were passed in in the first argument.
  */
 @Description(name = "kmeans",
-             value = "_FUNC_(points, K, max_iterations) - Perform K-means clustering on a collection of points represented as arrays and returns an array of cluster centers.")
+             value = "_FUNC_(points, K, max_iterations[, algorithm[, threads[, seed]]]) - Perform K-means clustering on a collection of points represented as arrays and returns an array of cluster centers.")
 public class UDFKmeans extends UDF {
-  public int sample(double[] weights) throws SemanticException {
-    double weight_sum = 0;
-    for (int ii = 0; ii < weights.length; ++ii) {
-      if (weights[ii] < 0.0) {
-        return -3;
-      }
-      weight_sum += weights[ii];
-    }
-
-    double r = Math.random();
-
-    if (weight_sum == 0.0) {
-      return (int)(r * weights.length);
-    }
+  private ForkJoinPool pool = null;
 
-    for (int ii = 0; ii < weights.length; ++ii) {
-      if (r < weights[ii] / weight_sum) {
-        return ii;
-      }
-      r -= weights[ii] / weight_sum;
+  public ArrayList<ArrayList<Double>>
+    evaluate(ArrayList<ArrayList<Double>> points,
+        Integer K, Integer max_iterations) throws SemanticException {
+      return evaluate(points, K, max_iterations, null);
     }
 
-    return -2;
-  }
-
-  public double squared_dist(ArrayList<Double> center, ArrayList<Double> point) throws SemanticException {
-    int M = point.size();
-    if (M != center.size()) {
-      throw new UDFArgumentTypeException(M,
-          "This should never happen.");
+  public ArrayList<ArrayList<Double>>
+    evaluate(ArrayList<ArrayList<Double>> points,
+        Integer K, Integer max_iterations, String algorithm_name)
+    throws SemanticException {
+      return evaluate(points, K, max_iterations, algorithm_name, null);
     }
 
-    double dist2 = 0;
-    for (int mm = 0; mm < M; ++mm) {
-      dist2 += (center.get(mm) - point.get(mm)) *
-        (center.get(mm) - point.get(mm));
+  public ArrayList<ArrayList<Double>>
+    evaluate(ArrayList<ArrayList<Double>> points,
+        Integer K, Integer max_iterations, String algorithm_name,
+        Integer threads) throws SemanticException {
+      return evaluate(points, K, max_iterations, algorithm_name, threads, null);
     }
-    return dist2;
-  }
 
   public ArrayList<ArrayList<Double>>
     evaluate(ArrayList<ArrayList<Double>> points,
-        Integer K, Integer max_iterations) throws SemanticException {
+        Integer K, Integer max_iterations, String algorithm_name,
+        Integer threads, Long seed) throws SemanticException {
+
+      KMeans.Algorithm algorithm = KMeans.Algorithm.LLOYD;
+      if (algorithm_name != null) {
+        algorithm = KMeans.Algorithm.parse(algorithm_name);
+        if (algorithm == null) {
+          throw new UDFArgumentTypeException(3,
+              "Unknown algorithm '" + algorithm_name +
+              "'; expected one of lloyd, hamerly or elkan.");
+        }
+      }
 
       if (K == null || max_iterations == null || points == null) {
         return null;
       }
 
+      if (threads != null && threads < 1) {
+        throw new UDFArgumentTypeException(4,
+            "The number of threads should be positive.");
+      }
+      ForkJoinPool kmeans_pool = null;
+      if (threads != null && threads > 1) {
+        // Keep the pool around for later rows; its threads are daemons.
+        if (pool == null || pool.getParallelism() != threads) {
+          if (pool != null) {
+            pool.shutdown();
+          }
+          pool = new ForkJoinPool(threads);
+        }
+        kmeans_pool = pool;
+      }
+
       if (K <= 0) {
         throw new UDFArgumentTypeException(K,
             "K should be positive.");
@@ -101,124 +132,43 @@ public class UDFKmeans extends UDF {
         return points;
       }
 
-      // First initialize using kmeans++.
+      // Copy the points once into a flat row-major array so that the
+      // clustering itself runs entirely on primitives.
       int M = points.get(0).size();
-      ArrayList<ArrayList<Double>> centers = new ArrayList<ArrayList<Double>>();
-      double dist2s[] = new double[N];
-
-      for (int ii = 0; ii < K; ++ii) {
-        int new_center = -1;
-
-        if (ii > 0) {
-          // Compute the distance to all centers.
-          for (int jj = 0; jj < N; ++jj) {
-            dist2s[jj] = 1e100;
-            ArrayList<Double> point = points.get(jj);
-            if (point.size() != M) {
-              throw new UDFArgumentTypeException(M,
-                  "Sizes of tuples do not match.");
-            }
-            for (int kk = 0; kk < ii; ++kk) {
-              double dist2 = squared_dist(centers.get(kk), point);
-              if (dist2 < dist2s[jj]) {
-                dist2s[jj] = dist2;
-              }
-            }
-          }
-          // Select a new point.
-          new_center = sample(dist2s);
-        } else {
-          new_center = (int)(Math.random() * N);
-        }
-
-        ArrayList<Double> point = points.get(new_center);
+      double[] flat_points = new double[N * M];
+      for (int jj = 0; jj < N; ++jj) {
+        ArrayList<Double> point = points.get(jj);
         if (point.size() != M) {
           throw new UDFArgumentTypeException(M,
               "Sizes of tuples do not match.");
         }
-        // Note, we go through the following rigamarole to ensure we have a proper clone.
-        ArrayList<Double> new_point = new ArrayList<Double>();
         for (int mm = 0; mm < M; ++mm) {
-          new_point.add(point.get(mm).doubleValue());
-        }
-        centers.add(new_point);
-      }
-
-      int[] assignments = new int[N];
-      int[] center_counts = new int[K];
-      for (int jj = 0; jj < N; ++jj) {
-        assignments[jj] = -1;
-      }
-
-      for (int ii = 0; ii < max_iterations; ++ii) {
-        for (int kk = 0; kk < K; ++kk) {
-          center_counts[kk] = 0;
-        }
-        boolean changed = false;
-
-        // Compute the assignments.
-        for (int jj = 0; jj < N; ++jj) {
-          int old_assignment = assignments[jj];
-          // Find the closest point.
-          ArrayList<Double> point = points.get(jj);
-          double mindist2 = 1e100;
-          for (int kk = 0; kk < K; ++kk) {
-            // Compute the distance to the kk'th center.
-            double dist2 = squared_dist(centers.get(kk), point);
-            if (dist2 < mindist2) {
-              assignments[jj] = kk;
-              mindist2 = dist2;
-            }
-          }
-          if (assignments[jj] != old_assignment) {
-            changed = true;
-          }
-          center_counts[assignments[jj]]++;
-        }
-
-        if (!changed) {
-          break;
-        }
-
-        // Compute the means.
-        for (int kk = 0; kk < K; ++kk) {
-          for (int mm = 0; mm < M; ++mm) {
-            centers.get(kk).set(mm, 0.0);
-          }
-        }
-        for (int jj = 0; jj < N; ++jj) {
-          ArrayList<Double> point = points.get(jj);
-          ArrayList<Double> center = centers.get(assignments[jj]);
-          for (int mm = 0; mm < M; ++mm) {
-            center.set(mm, center.get(mm) +
-                point.get(mm) / center_counts[assignments[jj]]);
-          }
+          flat_points[jj * M + mm] = point.get(mm);
         }
       }
 
-      // Compute sd and number of points in each cluster..
-      ArrayList<ArrayList<Double>> extra_stats = new ArrayList<ArrayList<Double>>();
-      for (int kk = 0; kk < K; ++kk) {
-        ArrayList<Double> extra_stat = new ArrayList<Double>();
-        extra_stat.add(0.0);
-        extra_stat.add(0.0);
-        extra_stats.add(extra_stat);
-      }
+      KMeans kmeans = new KMeans(flat_points, N, M, K,
+          seed == null ? new Random() : new Random(seed));
+      kmeans.initialize();
+      kmeans.iterate(max_iterations, algorithm, kmeans_pool);
 
-      for (int jj = 0; jj < N; ++jj) {
-        ArrayList<Double> point = points.get(jj);
-        ArrayList<Double> center = centers.get(assignments[jj]);
-        ArrayList<Double> extra_stat = extra_stats.get(assignments[jj]);
-        extra_stat.set(1, extra_stat.get(1) + 1);
-        extra_stat.set(0, extra_stat.get(0) + squared_dist(center, point));
-      }
+      // Compute sd and number of points in each cluster.
+      double[] centers = kmeans.getCenters();
+      int[] center_counts = kmeans.getCounts();
+      double[] squared_errors = kmeans.getSquaredErrors();
 
+      ArrayList<ArrayList<Double>> result = new ArrayList<ArrayList<Double>>(K);
       for (int kk = 0; kk < K; ++kk) {
-        double num_points = extra_stats.get(kk).get(1);
-        centers.get(kk).add(extra_stats.get(kk).get(0) / num_points);
-        centers.get(kk).add(num_points);
+        ArrayList<Double> center = new ArrayList<Double>(M + 2);
+        for (int mm = 0; mm < M; ++mm) {
+          center.add(centers[kk * M + mm]);
+        }
+        double num_points = center_counts[kk];
+        center.add(squared_errors[kk] / num_points);
+        center.add(num_points);
+        result.add(center);
       }
 
-      return centers;
+      return result;
     }
 }
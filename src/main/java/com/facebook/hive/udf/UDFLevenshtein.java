@@ -1,51 +1,33 @@
 package com.facebook.hive.udf;
 
+import com.facebook.hive.udf.lib.EditDistance;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDF;
 
 
 /**
  * Calculates Levenshtein distance between 2 strings.
+ *
+ * With max_dist, distances over max_dist are all returned as max_dist + 1,
+ * which lets the computation stop early (see lib.EditDistance); this is much
+ * faster when only near matches matter, e.g.
+ * WHERE udflevenshtein(a, b, 3) <= 3.
  */
 @Description(name = "udflevenshtein",
-             value = "_FUNC_(string, string) - calculates Levenshtein distance between 2 strings.")
+             value = "_FUNC_(string, string[, max_dist]) - calculates Levenshtein distance between 2 strings, " +
+                     "or max_dist + 1 if it is over max_dist.")
 public class UDFLevenshtein extends UDF {
   public Integer evaluate(String s1, String s2) {
-    if (s1 == null || s1 == null) {
+    if (s1 == null || s2 == null) {
       return null;
     }
-    return computeLevenshteinDistance(s1.toCharArray(), 
-      s2.toCharArray());
+    return EditDistance.levenshtein(s1, s2);
   }
 
-  private static int minimum(int a, int b, int c) {
-    if (a<=b && a<=c)
-      return a;
-    if (b<=a && b<=c)
-	    return b;
-    return c;
-  }
-    
-  private static int computeLevenshteinDistance(char[] str1, char[] str2) {
-    int[][] distance = new int[str1.length+1][];
-
-    for(int i=0; i<=str1.length; i++) {
-      distance[i] = new int[str2.length+1];
-      distance[i][0] = i;
-    }
-
-    for(int j=0; j<str2.length+1; j++) {
-      distance[0][j]=j;
-    }
-
-    for(int i=1; i<=str1.length; i++) {
-      for(int j=1;j<=str2.length; j++) {
-        distance[i][j]= minimum(distance[i-1][j]+1,
-          distance[i][j-1]+1,
-          distance[i-1][j-1]+((str1[i-1]==str2[j-1])?0:1));
-      }
+  public Integer evaluate(String s1, String s2, Integer max_dist) {
+    if (s1 == null || s2 == null || max_dist == null || max_dist < 0) {
+      return null;
     }
-
-    return distance[str1.length][str2.length];
+    return EditDistance.levenshtein(s1, s2, max_dist);
   }
 }
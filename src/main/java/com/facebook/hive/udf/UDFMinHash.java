@@ -0,0 +1,105 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.MinHash;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+
+/**
+ * Returns the MinHash signature of the set of elements of an array, an array
+ * of num_hashes bigints whose fraction of agreeing positions estimates the
+ * Jaccard similarity of two sets (see MINHASH_JACCARD), with a standard error
+ * of at most 0.5 / sqrt(num_hashes).  Signatures are built once per set, so
+ * comparing many pairs of sets costs O(num_hashes) per pair rather than
+ * hashing both sets again as UDFJACCARD does.  The signature is the same as
+ * MINHASH_AGG of the elements would give.
+ *
+ * NULL elements are ignored, and a NULL array gives NULL.
+ */
+@Description(name = "minhash",
+             value = "_FUNC_(array, num_hashes) - Returns the MinHash signature of the elements of array.")
+  public class UDFMinHash extends GenericUDF {
+    private ListObjectInspector arrayOI;
+    private PrimitiveObjectInspector elementOI;
+    private PrimitiveObjectInspector numHashesOI;
+    private MinHash minhash;
+    private final ArrayList<LongWritable> result = new ArrayList<LongWritable>();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 2) {
+        throw new UDFArgumentLengthException("MINHASH expects two arguments.");
+      }
+      if (!arguments[0].getCategory().equals(Category.LIST) ||
+          !((ListObjectInspector) arguments[0]).getListElementObjectInspector().getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(0, "MINHASH expects an array of a primitive type as its first argument");
+      }
+      if (!arguments[1].getCategory().equals(Category.PRIMITIVE)) {
+        throw new UDFArgumentTypeException(1, "MINHASH expects an integer num_hashes as its second argument");
+      }
+      arrayOI = (ListObjectInspector) arguments[0];
+      elementOI = (PrimitiveObjectInspector) arrayOI.getListElementObjectInspector();
+      numHashesOI = (PrimitiveObjectInspector) arguments[1];
+      return ObjectInspectorFactory.getStandardListObjectInspector(
+          PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object array = arguments[0].get();
+      Object numHashes = arguments[1].get();
+      if (array == null || numHashes == null) {
+        return null;
+      }
+      int num_hashes = PrimitiveObjectInspectorUtils.getInt(numHashes, numHashesOI);
+      if (minhash == null || minhash.getNumHashes() != num_hashes) {
+        try {
+          minhash = new MinHash(num_hashes);
+        } catch (IllegalArgumentException e) {
+          throw new HiveException(e.getMessage());
+        }
+      } else {
+        minhash.reset();
+      }
+
+      int n = arrayOI.getListLength(array);
+      for (int ii = 0; ii < n; ++ii) {
+        Object element = arrayOI.getListElement(array, ii);
+        if (element != null) {
+          minhash.add(PrimitiveHash.hash64(element, elementOI, UDAFMinHash.SEED));
+        }
+      }
+
+      long[] signature = minhash.getSignature();
+      while (result.size() > signature.length) {
+        result.remove(result.size() - 1);
+      }
+      while (result.size() < signature.length) {
+        result.add(new LongWritable());
+      }
+      for (int ii = 0; ii < signature.length; ++ii) {
+        result.get(ii).set(signature[ii]);
+      }
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 2);
+      return "minhash(" + children[0] + ", " + children[1] + ")";
+    }
+  }
@@ -0,0 +1,66 @@
+package com.facebook.hive.udf;
+
+import com.facebook.hive.udf.lib.MinHash;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+
+/**
+ * Estimates the Jaccard similarity |A&B| / |AvB| of two sets from their
+ * signatures built by MINHASH or MINHASH_AGG with the same num_hashes, in
+ * O(num_hashes).  As with UDFJACCARD, two empty sets have similarity 0.
+ */
+@Description(name = "minhash_jaccard",
+             value = "_FUNC_(signature1, signature2) - Returns the estimated Jaccard similarity of the sets of two MinHash signatures.")
+  public class UDFMinHashJaccard extends GenericUDF {
+    private ListObjectInspector signature1OI;
+    private ListObjectInspector signature2OI;
+    private long[] signature1;
+    private long[] signature2;
+    private final DoubleWritable result = new DoubleWritable();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+      throws UDFArgumentException {
+      if (arguments.length != 2) {
+        throw new UDFArgumentLengthException("MINHASH_JACCARD expects two arguments.");
+      }
+      for (int ii = 0; ii < 2; ++ii) {
+        if (!UDAFMinHash.isSignature(arguments[ii])) {
+          throw new UDFArgumentTypeException(ii, "MINHASH_JACCARD expects signatures of type ARRAY<BIGINT>");
+        }
+      }
+      signature1OI = (ListObjectInspector) arguments[0];
+      signature2OI = (ListObjectInspector) arguments[1];
+      return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+      Object s1 = arguments[0].get();
+      Object s2 = arguments[1].get();
+      if (s1 == null || s2 == null) {
+        return null;
+      }
+      signature1 = UDAFMinHash.toArray(s1, signature1OI, signature1);
+      signature2 = UDAFMinHash.toArray(s2, signature2OI, signature2);
+      if (signature1.length != signature2.length || signature1.length == 0) {
+        throw new HiveException("MINHASH_JACCARD expects signatures of the same length.");
+      }
+      result.set(MinHash.jaccard(signature1, signature2, signature1.length));
+      return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+      assert (children.length == 2);
+      return "minhash_jaccard(" + children[0] + ", " + children[1] + ")";
+    }
+  }
@@ -0,0 +1,145 @@
+package com.facebook.hive.udf.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter of 64 bit hashes: a set membership test with no false
+ * negatives and a tunable rate of false positives.
+ *
+ * The filter is a bit array of 64 * words bits, and an item sets k of them.
+ * With bits = -n ln(fpp) / ln(2)^2 and k = bits / n * ln(2) the false
+ * positive rate after n distinct items is about fpp.  Filters of the same
+ * dimensions merge by OR-ing their bits.  The bit positions are derived from
+ * the hash and a remix of it as in Kirsch and Mitzenmacher, "Less hashing,
+ * same performance".
+ *
+ * The binary form is [words: int, k: int, bits: long * words], so that
+ * mightContain() can probe a serialized filter in place.
+ */
+public class BloomFilter {
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_WORDS = (Integer.MAX_VALUE - HEADER_SIZE) / 8;
+
+    private final int k;
+    private final long[] words;
+
+    public BloomFilter(int words, int k) {
+        if (words <= 0 || k <= 0) {
+            throw new IllegalArgumentException("The size and number of hashes must be positive.");
+        }
+        if (words > MAX_WORDS) {
+            throw new IllegalArgumentException("The filter would be too large.");
+        }
+        this.k = k;
+        this.words = new long[words];
+    }
+
+    /**
+     * A filter whose false positive rate is about fpp once expected_n distinct
+     * items have been added.
+     */
+    public static BloomFilter withAccuracy(long expected_n, double fpp) {
+        if (expected_n <= 0) {
+            throw new IllegalArgumentException("expected_n must be positive.");
+        }
+        if (!(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("fpp must be in (0, 1).");
+        }
+        double bits = -expected_n * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        double words = Math.ceil(bits / 64);
+        if (words > MAX_WORDS) {
+            throw new IllegalArgumentException("The filter would be too large.");
+        }
+        int k = (int) Math.max(1, Math.round(64 * words / expected_n * Math.log(2)));
+        return new BloomFilter((int) words, k);
+    }
+
+    public int getNumHashes() {
+        return k;
+    }
+
+    public long getNumBits() {
+        return 64L * words.length;
+    }
+
+    private static long bit(long hash, long h2, int ii, long num_bits) {
+        long combined = hash + ii * h2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % num_bits;
+    }
+
+    public void add(long hash) {
+        long h2 = Hashing.fmix64(hash);
+        long num_bits = 64L * words.length;
+        for (int ii = 0; ii < k; ++ii) {
+            long bit = bit(hash, h2, ii, num_bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(long hash) {
+        long h2 = Hashing.fmix64(hash);
+        long num_bits = 64L * words.length;
+        for (int ii = 0; ii < k; ++ii) {
+            long bit = bit(hash, h2, ii, num_bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * words.length);
+        buffer.putInt(words.length);
+        buffer.putInt(k);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /** OR in the bits of a serialized filter of the same dimensions. */
+    public void addBytes(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        if (length != HEADER_SIZE + 8L * words.length ||
+            buffer.getInt() != words.length || buffer.getInt() != k) {
+            throw new IllegalArgumentException("Filters of different dimensions cannot be merged.");
+        }
+        for (int ii = 0; ii < words.length; ++ii) {
+            words[ii] |= buffer.getLong();
+        }
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Not a serialized Bloom filter.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        BloomFilter filter = new BloomFilter(buffer.getInt(), buffer.getInt());
+        filter.addBytes(bytes, offset, length);
+        return filter;
+    }
+
+    /** Whether a serialized filter might contain an item. */
+    public static boolean mightContain(byte[] bytes, int offset, int length, long hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int num_words = buffer.getInt();
+        int k = buffer.getInt();
+        if (num_words <= 0 || k <= 0 || length != HEADER_SIZE + 8L * num_words) {
+            throw new IllegalArgumentException("Not a serialized Bloom filter.");
+        }
+        long h2 = Hashing.fmix64(hash);
+        long num_bits = 64L * num_words;
+        for (int ii = 0; ii < k; ++ii) {
+            long bit = bit(hash, h2, ii, num_bits);
+            long word = buffer.getLong(offset + HEADER_SIZE + 8 * (int) (bit >>> 6));
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
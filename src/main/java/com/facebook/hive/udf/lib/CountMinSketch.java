@@ -0,0 +1,143 @@
+package com.facebook.hive.udf.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Count-Min sketch (Cormode and Muthukrishnan, "An improved data stream
+ * summary: the count-min sketch and its applications") of item frequencies.
+ *
+ * The sketch is depth rows of width counters.  An item, given by a 64 bit
+ * hash, increments one counter in each row, and its estimated count is the
+ * smallest of those counters.  With width = ceil(e / eps) and
+ * depth = ceil(ln(1 / delta)) the estimate is never below the true count, and
+ * exceeds it by more than eps * getTotalCount() with probability at most
+ * delta.  Sketches of the same dimensions merge by adding their counters.
+ *
+ * The row indices are derived from the two halves of the hash as in
+ * Kirsch and Mitzenmacher, "Less hashing, same performance".
+ *
+ * The binary form is [width: int, depth: int, total: long,
+ * counts: long * (depth * width)], row by row, so that estimate() can read a
+ * serialized sketch in place.
+ */
+public class CountMinSketch {
+    private static final int HEADER_SIZE = 16;
+
+    private final int width;
+    private final int depth;
+    private final long[] counts;
+    private long total = 0;
+
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("The width and depth must be positive.");
+        }
+        if ((long) width * depth > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException("The sketch would be too large.");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counts = new long[width * depth];
+    }
+
+    /**
+     * A sketch whose estimates exceed the true counts by at most eps times the
+     * total count, with probability at least 1 - delta.
+     */
+    public static CountMinSketch withAccuracy(double eps, double delta) {
+        if (!(eps > 0 && eps < 1)) {
+            throw new IllegalArgumentException("eps must be in (0, 1).");
+        }
+        if (!(delta > 0 && delta < 1)) {
+            throw new IllegalArgumentException("delta must be in (0, 1).");
+        }
+        return new CountMinSketch((int) Math.ceil(Math.E / eps),
+                                  (int) Math.ceil(Math.log(1 / delta)));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getTotalCount() {
+        return total;
+    }
+
+    private static int index(long hash, int row, int width) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int combined = h1 + row * h2;
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return row * width + combined % width;
+    }
+
+    public void add(long hash, long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Counts must be non-negative.");
+        }
+        for (int row = 0; row < depth; ++row) {
+            counts[index(hash, row, width)] += count;
+        }
+        total += count;
+    }
+
+    public long estimate(long hash) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; ++row) {
+            estimate = Math.min(estimate, counts[index(hash, row, width)]);
+        }
+        return estimate;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * counts.length);
+        buffer.putInt(width);
+        buffer.putInt(depth);
+        buffer.putLong(total);
+        for (long count : counts) {
+            buffer.putLong(count);
+        }
+        return buffer.array();
+    }
+
+    /** Add the counters of a serialized sketch of the same dimensions. */
+    public void addBytes(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        if (buffer.getInt() != width || buffer.getInt() != depth) {
+            throw new IllegalArgumentException("Sketches of different dimensions cannot be merged.");
+        }
+        total += buffer.getLong();
+        for (int ii = 0; ii < counts.length; ++ii) {
+            counts[ii] += buffer.getLong();
+        }
+    }
+
+    public static CountMinSketch fromBytes(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        CountMinSketch sketch = new CountMinSketch(buffer.getInt(), buffer.getInt());
+        sketch.addBytes(bytes, offset, length);
+        return sketch;
+    }
+
+    /** The estimated count of an item in a serialized sketch. */
+    public static long estimate(byte[] bytes, int offset, int length, long hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int width = buffer.getInt();
+        int depth = buffer.getInt();
+        if (length != HEADER_SIZE + 8L * width * depth) {
+            throw new IllegalArgumentException("Not a serialized Count-Min sketch.");
+        }
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; ++row) {
+            estimate = Math.min(estimate,
+                buffer.getLong(offset + HEADER_SIZE + 8 * index(hash, row, width)));
+        }
+        return estimate;
+    }
+}
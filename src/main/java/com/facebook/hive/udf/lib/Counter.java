@@ -6,48 +6,140 @@ import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 /** inspired by stanford nlp's Counter classes
  * @boconnor
+ *
+ * Counts are kept in an open-addressing table (linear probing) of keys,
+ * their hash codes and primitive int counts, so an increment is a single
+ * probe with no allocation, and merging or growing the table reuses the
+ * stored hash codes instead of hashing every key again.  The total is a
+ * long, so it does not overflow past 2^31 increments.  Null keys are not
+ * allowed.  See LongCounter for long keys.
  **/
 public class Counter<E> {
-    public Map<E,Integer> counts;
-    public int totalCount;
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int mask;
+    private int size = 0;
+    private long totalCount = 0;
 
     public Counter() {
-        counts = new HashMap<E,Integer>();
-        totalCount = 0;
+        keys = new Object[MIN_CAPACITY];
+        hashes = new int[MIN_CAPACITY];
+        counts = new int[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+    }
+
+    // Also used by SpaceSaving for its table of slots.
+    static int spread(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
     }
+
     public void increment(E obj, int amount) {
-        if (!counts.containsKey(obj)) {
-            counts.put(obj, amount);
-        } else {
-            counts.put(obj,  counts.get(obj) + amount);
+        if (obj == null) {
+            throw new NullPointerException("Counter keys cannot be null.");
         }
+        add(obj, spread(obj.hashCode()), amount);
         totalCount += amount;
     }
     public void increment(E obj) {
         increment(obj, 1);
     }
+
+    private void add(Object obj, int hash, int amount) {
+        int ii = hash & mask;
+        Object key;
+        while ((key = keys[ii]) != null) {
+            if (hashes[ii] == hash && (key == obj || key.equals(obj))) {
+                counts[ii] += amount;
+                return;
+            }
+            ii = (ii + 1) & mask;
+        }
+        keys[ii] = obj;
+        hashes[ii] = hash;
+        counts[ii] = amount;
+        if (++size > keys.length * 3 / 4) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        Object[] old_keys = keys;
+        int[] old_hashes = hashes;
+        int[] old_counts = counts;
+        keys = new Object[2 * old_keys.length];
+        hashes = new int[keys.length];
+        counts = new int[keys.length];
+        mask = keys.length - 1;
+        for (int jj = 0; jj < old_keys.length; ++jj) {
+            if (old_keys[jj] != null) {
+                int ii = old_hashes[jj] & mask;
+                while (keys[ii] != null) {
+                    ii = (ii + 1) & mask;
+                }
+                keys[ii] = old_keys[jj];
+                hashes[ii] = old_hashes[jj];
+                counts[ii] = old_counts[jj];
+            }
+        }
+    }
+
     public int getCount(E obj) {
-        if (!counts.containsKey(obj)) {
+        if (obj == null) {
             return 0;
-        } else {
-            return counts.get(obj);
         }
+        int hash = spread(obj.hashCode());
+        Object key;
+        for (int ii = hash & mask; (key = keys[ii]) != null; ii = (ii + 1) & mask) {
+            if (hashes[ii] == hash && (key == obj || key.equals(obj))) {
+                return counts[ii];
+            }
+        }
+        return 0;
     }
     public int size() {
-        return counts.size();
+        return size;
+    }
+    public long getTotalCount() {
+        return totalCount;
     }
     public void addAll(Counter<E> counter) {
-        for (E key : counter.keySet()) {
-            increment(key, counter.getCount(key));
+        for (int ii = 0; ii < counter.keys.length; ++ii) {
+            if (counter.keys[ii] != null) {
+                add(counter.keys[ii], counter.hashes[ii], counter.counts[ii]);
+            }
         }
+        totalCount += counter.totalCount;
     }
+    @SuppressWarnings("unchecked")
     public Set<E> keySet() {
-        return counts.keySet();
+        Set<E> result = new HashSet<E>(2 * size);
+        for (Object key : keys) {
+            if (key != null) {
+                result.add((E) key);
+            }
+        }
+        return result;
+    }
+    /** A copy of the counts as a map. */
+    @SuppressWarnings("unchecked")
+    public Map<E,Integer> toMap() {
+        Map<E,Integer> result = new HashMap<E,Integer>(2 * size);
+        for (int ii = 0; ii < keys.length; ++ii) {
+            if (keys[ii] != null) {
+                result.put((E) keys[ii], counts[ii]);
+            }
+        }
+        return result;
     }
 
     /** this version is probabilities not counts, and also decorated with totalCount **/
@@ -79,7 +171,7 @@ public class Counter<E> {
             c.increment(line);
         }
 
-        System.out.println(new JSONObject(c.counts).toString());
+        System.out.println(new JSONObject(c.toMap()).toString());
         System.out.println(c.toNormalizedJSON());
 
     }
@@ -0,0 +1,199 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Arrays;
+
+/**
+ * Levenshtein distance in O(min(n, m)) memory.
+ *
+ * Common prefixes and suffixes are stripped first, as they never change the
+ * distance.  If what remains of the shorter string fits in a machine word
+ * the distance is computed with the bit-parallel algorithm of Myers, as
+ * formulated by Hyyro ("Explaining and extending the bit-parallel approximate
+ * string matching algorithm of Myers", 2001), in O(n) word operations;
+ * otherwise by the usual dynamic program, one row at a time.
+ *
+ * The bounded version only fills the diagonal band of width 2 * max + 1
+ * which can hold distances of at most max (Ukkonen, "Algorithms for
+ * approximate string matching", 1985), and stops as soon as a whole row of
+ * the band exceeds max, so it costs O(max * n) and less for strings which
+ * are far apart.
+ */
+public class EditDistance {
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+    public static int levenshtein(CharSequence s1, CharSequence s2) {
+        CharSequence a = s1.length() <= s2.length() ? s1 : s2;
+        CharSequence b = a == s1 ? s2 : s1;
+        int start = commonPrefix(a, b);
+        int end_a = a.length() - commonSuffix(a, b, start);
+        int end_b = b.length() - (a.length() - end_a);
+        if (start == end_a) {
+            return end_b - start;
+        }
+        if (end_a - start <= 64) {
+            return bitParallel(a, start, end_a, b, start, end_b);
+        }
+        return dynamicProgram(a, start, end_a, b, start, end_b);
+    }
+
+    /**
+     * The Levenshtein distance if it is at most max, and max + 1 otherwise.
+     */
+    public static int levenshtein(CharSequence s1, CharSequence s2, int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("The maximum distance must not be negative.");
+        }
+        CharSequence a = s1.length() <= s2.length() ? s1 : s2;
+        CharSequence b = a == s1 ? s2 : s1;
+        // The distance is at most b.length(), so this changes no result.
+        max = Math.min(max, b.length());
+        if (b.length() - a.length() > max) {
+            return max + 1;
+        }
+        int start = commonPrefix(a, b);
+        int end_a = a.length() - commonSuffix(a, b, start);
+        int end_b = b.length() - (a.length() - end_a);
+        if (start == end_a) {
+            return Math.min(end_b - start, max + 1);
+        }
+        return banded(a, start, end_a, b, start, end_b, max);
+    }
+
+    private static int commonPrefix(CharSequence a, CharSequence b) {
+        int ii = 0;
+        while (ii < a.length() && a.charAt(ii) == b.charAt(ii)) {
+            ++ii;
+        }
+        return ii;
+    }
+
+    /** The length of the common suffix, not overlapping a prefix of length start. */
+    private static int commonSuffix(CharSequence a, CharSequence b, int start) {
+        int ii = 0;
+        while (ii < a.length() - start &&
+               a.charAt(a.length() - 1 - ii) == b.charAt(b.length() - 1 - ii)) {
+            ++ii;
+        }
+        return ii;
+    }
+
+    /**
+     * Myers' algorithm with the pattern a[from_a, to_a), of at most 64
+     * characters, as the column.  The bit vectors hold the vertical deltas of
+     * the current column of the dynamic program, and score is its last cell.
+     */
+    private static int bitParallel(CharSequence a, int from_a, int to_a,
+                                   CharSequence b, int from_b, int to_b) {
+        int m = to_a - from_a;
+        // The positions of each character in the pattern, in an
+        // open-addressing table with room for 64 distinct characters.
+        int[] chars = new int[128];
+        long[] masks = new long[128];
+        Arrays.fill(chars, -1);
+        for (int ii = 0; ii < m; ++ii) {
+            char c = a.charAt(from_a + ii);
+            int slot = c & 127;
+            while (chars[slot] != -1 && chars[slot] != c) {
+                slot = (slot + 1) & 127;
+            }
+            chars[slot] = c;
+            masks[slot] |= 1L << ii;
+        }
+
+        long last = 1L << (m - 1);
+        long pv = -1L;
+        long mv = 0L;
+        int score = m;
+        for (int jj = from_b; jj < to_b; ++jj) {
+            char c = b.charAt(jj);
+            int slot = c & 127;
+            while (chars[slot] != -1 && chars[slot] != c) {
+                slot = (slot + 1) & 127;
+            }
+            long eq = chars[slot] == -1 ? 0L : masks[slot];
+
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0) {
+                ++score;
+            } else if ((mh & last) != 0) {
+                --score;
+            }
+            ph = (ph << 1) | 1L;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+        }
+        return score;
+    }
+
+    /** The dynamic program over b, keeping one row of a[from_a, to_a). */
+    private static int dynamicProgram(CharSequence a, int from_a, int to_a,
+                                      CharSequence b, int from_b, int to_b) {
+        int m = to_a - from_a;
+        int[] row = new int[m + 1];
+        for (int ii = 0; ii <= m; ++ii) {
+            row[ii] = ii;
+        }
+        for (int jj = from_b; jj < to_b; ++jj) {
+            char c = b.charAt(jj);
+            // row[ii - 1] of the previous row, before it was overwritten.
+            int diagonal = row[0];
+            row[0] = jj - from_b + 1;
+            for (int ii = 1; ii <= m; ++ii) {
+                int above = row[ii];
+                int cost = a.charAt(from_a + ii - 1) == c ? 0 : 1;
+                row[ii] = Math.min(Math.min(row[ii - 1], above) + 1, diagonal + cost);
+                diagonal = above;
+            }
+        }
+        return row[m];
+    }
+
+    /**
+     * The dynamic program restricted to cells within max of the diagonal, a
+     * row per character of b and a column per character of a.  Cells outside
+     * the band are infinite, as they can only lead to distances over max.
+     */
+    private static int banded(CharSequence a, int from_a, int to_a,
+                              CharSequence b, int from_b, int to_b, int max) {
+        int m = to_a - from_a;
+        int n = to_b - from_b;
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        Arrays.fill(previous, INFINITY);
+        Arrays.fill(current, INFINITY);
+        for (int ii = 0; ii <= Math.min(m, max); ++ii) {
+            previous[ii] = ii;
+        }
+
+        for (int jj = 1; jj <= n; ++jj) {
+            char c = b.charAt(from_b + jj - 1);
+            int low = Math.max(1, jj - max);
+            int high = (int) Math.min(m, (long) jj + max);
+            if (low > high) {
+                return max + 1;
+            }
+            current[low - 1] = low == 1 && jj <= max ? jj : INFINITY;
+            int row_min = current[low - 1];
+            for (int ii = low; ii <= high; ++ii) {
+                int cost = a.charAt(from_a + ii - 1) == c ? 0 : 1;
+                int d = Math.min(Math.min(current[ii - 1], previous[ii]) + 1,
+                                 previous[ii - 1] + cost);
+                current[ii] = d;
+                if (d < row_min) {
+                    row_min = d;
+                }
+            }
+            if (row_min > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[m], max + 1);
+    }
+}
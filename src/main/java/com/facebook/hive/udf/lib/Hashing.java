@@ -0,0 +1,63 @@
+package com.facebook.hive.udf.lib;
+
+/**
+ * 64 bit hashes for sketches: MurmurHash64A (Austin Appleby) for byte
+ * sequences, and the finalizer of MurmurHash3 for single longs.  Both are
+ * fixed by their seed, so sketches built on different machines agree.
+ */
+public class Hashing {
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+
+    public static long hash64(byte[] data, int offset, int length, long seed) {
+        long h = (seed & 0xffffffffL) ^ (length * M);
+
+        int end = offset + (length & ~7);
+        for (int ii = offset; ii < end; ii += 8) {
+            long k = (data[ii] & 0xffL)
+                | (data[ii + 1] & 0xffL) << 8
+                | (data[ii + 2] & 0xffL) << 16
+                | (data[ii + 3] & 0xffL) << 24
+                | (data[ii + 4] & 0xffL) << 32
+                | (data[ii + 5] & 0xffL) << 40
+                | (data[ii + 6] & 0xffL) << 48
+                | (data[ii + 7] & 0xffL) << 56;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+
+        switch (length & 7) {
+        case 7: h ^= (data[end + 6] & 0xffL) << 48;
+        case 6: h ^= (data[end + 5] & 0xffL) << 40;
+        case 5: h ^= (data[end + 4] & 0xffL) << 32;
+        case 4: h ^= (data[end + 3] & 0xffL) << 24;
+        case 3: h ^= (data[end + 2] & 0xffL) << 16;
+        case 2: h ^= (data[end + 1] & 0xffL) << 8;
+        case 1: h ^= (data[end] & 0xffL);
+                h *= M;
+        default:
+        }
+
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+
+    public static long hash64(long value, long seed) {
+        return fmix64(value ^ fmix64(seed));
+    }
+
+    /** The finalizer of MurmurHash3, a bijection which mixes all the bits. */
+    public static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,354 @@
+package com.facebook.hive.udf.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog sketch of 64-bit hashes, for estimating the number of
+ * distinct values in a stream in O(2^p) bytes with a relative standard error
+ * of about 1.04 / sqrt(2^p).
+ *
+ * As in HLL++ (Heule et al., "HyperLogLog in Practice", 2013) small sketches
+ * are sparse: each hash is kept as its index and rank at precision
+ * SPARSE_PRECISION (25) in a sorted int array, new entries being buffered and
+ * merged in batches, and the estimate is linear counting over 2^25 buckets,
+ * which is nearly exact.  Once the sparse list would take more room than the
+ * 2^p one-byte registers the sketch turns dense.  Dense sketches are estimated
+ * with Ertl's improved estimator ("New cardinality estimation algorithms for
+ * HyperLogLog sketches", 2017), which needs no empirical bias tables and is
+ * accurate over the whole range.
+ *
+ * Sketches of different precisions can be merged; the result has the smaller
+ * precision.  The serialized form is a format byte and the precision,
+ * followed by either the 2^p registers or the number of sparse entries and
+ * the delta-encoded entries as varints.
+ */
+public class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    public static final int SPARSE_PRECISION = 25;
+
+    private static final byte DENSE = 1;
+    private static final byte SPARSE = 2;
+
+    private int p;
+
+    // Dense: one register per bucket, or null while sparse.
+    private byte[] registers;
+
+    // Sparse: sorted, distinct-index entries (index << 6 | rank) at
+    // SPARSE_PRECISION, plus a buffer of entries not yet merged in.
+    private int[] sparse;
+    private int sparse_size;
+    private int[] pending;
+    private int pending_size;
+
+    public HyperLogLog(int p) {
+        if (p < MIN_PRECISION || p > MAX_PRECISION) {
+            throw new IllegalArgumentException(
+                "The precision must be in [" + MIN_PRECISION + ", " + MAX_PRECISION + "].");
+        }
+        this.p = p;
+        this.sparse = new int[0];
+        this.sparse_size = 0;
+        this.pending = new int[Math.max(16, (1 << p) / 32)];
+        this.pending_size = 0;
+    }
+
+    public int getPrecision() {
+        return p;
+    }
+
+    public boolean isSparse() {
+        return registers == null;
+    }
+
+    /** The rank of the first set bit of hash after its top bits bits. */
+    private static int rank(long hash, int bits) {
+        return Long.numberOfLeadingZeros((hash << bits) | (1L << (bits - 1))) + 1;
+    }
+
+    public void add(long hash) {
+        if (registers != null) {
+            int index = (int) (hash >>> (64 - p));
+            byte r = (byte) rank(hash, p);
+            if (registers[index] < r) {
+                registers[index] = r;
+            }
+        } else {
+            int index = (int) (hash >>> (64 - SPARSE_PRECISION));
+            addSparse(index << 6 | rank(hash, SPARSE_PRECISION));
+        }
+    }
+
+    private void addSparse(int entry) {
+        pending[pending_size++] = entry;
+        if (pending_size == pending.length) {
+            flush();
+        }
+    }
+
+    /** Merge the pending entries into the sparse list, turning dense if needed. */
+    private void flush() {
+        if (pending_size == 0) {
+            return;
+        }
+        Arrays.sort(pending, 0, pending_size);
+        int[] merged = new int[sparse_size + pending_size];
+        int size = 0;
+        int ii = 0;
+        int jj = 0;
+        while (ii < sparse_size || jj < pending_size) {
+            int entry;
+            if (jj == pending_size || (ii < sparse_size && sparse[ii] <= pending[jj])) {
+                entry = sparse[ii++];
+            } else {
+                entry = pending[jj++];
+            }
+            // Entries sort by index, then rank: keep the last for each index.
+            if (size > 0 && (merged[size - 1] >>> 6) == (entry >>> 6)) {
+                merged[size - 1] = entry;
+            } else {
+                merged[size++] = entry;
+            }
+        }
+        sparse = merged;
+        sparse_size = size;
+        pending_size = 0;
+        if (sparse_size > (1 << p) / 4) {
+            toDense();
+        }
+    }
+
+    private void toDense() {
+        registers = new byte[1 << p];
+        for (int ii = 0; ii < sparse_size; ++ii) {
+            addSparseToDense(registers, p, sparse[ii]);
+        }
+        for (int ii = 0; ii < pending_size; ++ii) {
+            addSparseToDense(registers, p, pending[ii]);
+        }
+        sparse = null;
+        pending = null;
+        sparse_size = 0;
+        pending_size = 0;
+    }
+
+    private static void addSparseToDense(byte[] registers, int p, int entry) {
+        int sparse_index = entry >>> 6;
+        int extra = SPARSE_PRECISION - p;
+        int index = sparse_index >>> extra;
+        int low = sparse_index & ((1 << extra) - 1);
+        int r;
+        if (low != 0) {
+            r = Integer.numberOfLeadingZeros(low) - (32 - extra) + 1;
+        } else {
+            r = extra + (entry & 0x3f);
+        }
+        if (registers[index] < r) {
+            registers[index] = (byte) r;
+        }
+    }
+
+    /** Lower the precision of a dense sketch to p. */
+    private void foldTo(int new_p) {
+        if (new_p == p) {
+            return;
+        }
+        if (registers == null) {
+            p = new_p;
+            if (sparse_size > (1 << p) / 4) {
+                toDense();
+            }
+            return;
+        }
+        int shift = p - new_p;
+        byte[] folded = new byte[1 << new_p];
+        for (int ii = 0; ii < registers.length; ++ii) {
+            if (registers[ii] == 0) {
+                continue;
+            }
+            int index = ii >>> shift;
+            int low = ii & ((1 << shift) - 1);
+            int r;
+            if (low != 0) {
+                r = Integer.numberOfLeadingZeros(low) - (32 - shift) + 1;
+            } else {
+                r = shift + registers[ii];
+            }
+            if (folded[index] < r) {
+                folded[index] = (byte) r;
+            }
+        }
+        registers = folded;
+        p = new_p;
+    }
+
+    public void merge(HyperLogLog other) {
+        flush();
+        other.flush();
+        if (other.p < p) {
+            foldTo(other.p);
+        }
+        if (other.registers == null) {
+            for (int ii = 0; ii < other.sparse_size; ++ii) {
+                // Adding may turn this sketch dense part way through.
+                if (registers == null) {
+                    addSparse(other.sparse[ii]);
+                } else {
+                    addSparseToDense(registers, p, other.sparse[ii]);
+                }
+            }
+            flush();
+            return;
+        }
+        byte[] other_registers = other.registers;
+        if (other.p > p) {
+            HyperLogLog copy = new HyperLogLog(other.p);
+            copy.registers = other.registers.clone();
+            copy.sparse = null;
+            copy.pending = null;
+            copy.foldTo(p);
+            other_registers = copy.registers;
+        }
+        if (registers == null) {
+            toDense();
+        }
+        for (int ii = 0; ii < registers.length; ++ii) {
+            if (registers[ii] < other_registers[ii]) {
+                registers[ii] = other_registers[ii];
+            }
+        }
+    }
+
+    public long cardinality() {
+        flush();
+        if (registers == null) {
+            // Linear counting over the sparse buckets.
+            double m = 1 << SPARSE_PRECISION;
+            return Math.round(m * Math.log(m / (m - sparse_size)));
+        }
+        int q = 64 - p;
+        int[] histogram = new int[q + 2];
+        for (byte r : registers) {
+            ++histogram[r];
+        }
+        double m = registers.length;
+        double z = m * tau(1.0 - histogram[q + 1] / m);
+        for (int k = q; k >= 1; --k) {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += m * sigma(histogram[0] / m);
+        return Math.round(m * m / (2.0 * Math.log(2.0)) / z);
+    }
+
+    private static double sigma(double x) {
+        if (x == 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1.0;
+        double z = x;
+        double previous;
+        do {
+            x *= x;
+            previous = z;
+            z += x * y;
+            y += y;
+        } while (z != previous);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0.0 || x == 1.0) {
+            return 0.0;
+        }
+        double y = 1.0;
+        double z = 1.0 - x;
+        double previous;
+        do {
+            x = Math.sqrt(x);
+            previous = z;
+            y *= 0.5;
+            z -= (1.0 - x) * (1.0 - x) * y;
+        } while (z != previous);
+        return z / 3.0;
+    }
+
+    public byte[] toBytes() {
+        flush();
+        if (registers != null) {
+            byte[] bytes = new byte[2 + registers.length];
+            bytes[0] = DENSE;
+            bytes[1] = (byte) p;
+            System.arraycopy(registers, 0, bytes, 2, registers.length);
+            return bytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2 + 5 + 3 * sparse_size);
+        out.write(SPARSE);
+        out.write(p);
+        writeVarint(out, sparse_size);
+        int previous = 0;
+        for (int ii = 0; ii < sparse_size; ++ii) {
+            writeVarint(out, sparse[ii] - previous);
+            previous = sparse[ii];
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes, int offset, int length) {
+        if (length < 2 || bytes[offset + 1] < MIN_PRECISION || bytes[offset + 1] > MAX_PRECISION) {
+            throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+        }
+        HyperLogLog sketch = new HyperLogLog(bytes[offset + 1]);
+        if (bytes[offset] == DENSE) {
+            if (length != 2 + (1 << sketch.p)) {
+                throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+            }
+            sketch.registers = Arrays.copyOfRange(bytes, offset + 2, offset + length);
+            sketch.sparse = null;
+            sketch.pending = null;
+            return sketch;
+        }
+        if (bytes[offset] != SPARSE) {
+            throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+        }
+        int[] position = {offset + 2};
+        int end = offset + length;
+        int n = readVarint(bytes, position, end);
+        if (n < 0 || n > end - position[0]) {
+            throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+        }
+        int[] entries = new int[n];
+        int previous = 0;
+        for (int ii = 0; ii < n; ++ii) {
+            previous += readVarint(bytes, position, end);
+            entries[ii] = previous;
+        }
+        sketch.sparse = entries;
+        sketch.sparse_size = n;
+        return sketch;
+    }
+
+    private static int readVarint(byte[] bytes, int[] position, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= end) {
+                throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+            }
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Not a serialized HyperLogLog sketch.");
+    }
+}
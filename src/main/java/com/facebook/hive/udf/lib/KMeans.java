@@ -0,0 +1,664 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * K-means clustering over points stored in a single flat, row-major array:
+ * point jj occupies points[jj * M] through points[jj * M + M - 1].  Seeding
+ * (K-means++), Lloyd's iterations and the final cluster statistics all work on
+ * primitive arrays, so clustering a large collection never boxes a coordinate
+ * and allocates nothing per iteration.
+ *
+ * Points may optionally carry non-negative weights, in which case seeding
+ * samples proportionally to weight times squared distance, centers are
+ * weighted means and squared errors are weighted.  This is what lets a sketch
+ * of weighted centroids stand in for the points it summarizes.
+ *
+ * The assignment step can optionally use the triangle inequality to skip
+ * distance computations that provably cannot change a point's cluster, in the
+ * manner of Hamerly ("Making k-means even faster", 2010) or Elkan ("Using the
+ * triangle inequality to accelerate k-means", 2003).  Hamerly keeps two bounds
+ * per point and suits low-dimensional data; Elkan keeps K + 1 bounds per point
+ * and prunes more aggressively when M and K are large.  Both produce the same
+ * assignments, and hence the same centers, as plain Lloyd's iterations.
+ *
+ * Each iteration processes the points in fixed blocks of BLOCK_SIZE, each
+ * producing its own partial sums for the new centers; the partial sums are
+ * then added up in block order.  The blocks can be run on a ForkJoinPool, and
+ * because the blocking does not depend on the pool the results are the same
+ * whether one thread or many are used.
+ *
+ * Usage:
+ *
+ *     KMeans kmeans = new KMeans(points, N, M, K, new Random());
+ *     kmeans.initialize();
+ *     kmeans.iterate(max_iterations, KMeans.Algorithm.HAMERLY, pool);
+ *     double[] centers = kmeans.getCenters();
+ */
+public class KMeans {
+    public enum Algorithm {
+        LLOYD, HAMERLY, ELKAN;
+
+        /** Parse a case-insensitive algorithm name, or null if unknown. */
+        public static Algorithm parse(String name) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.name().equalsIgnoreCase(name)) {
+                    return algorithm;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final int BLOCK_SIZE = 4096;
+
+    private final double[] points;
+    private final double[] weights;
+    private final int N;
+    private final int M;
+    private final int K;
+    private final Random random;
+
+    // K x M, row-major like the points.
+    private final double[] centers;
+    private final int[] assignments;
+    private final int[] counts;
+    private final double[] masses;
+    private final double[] dist2s;
+    private final double[] cumulative;
+    private boolean assigned;
+
+    // Per-block partial sums for the center update: num_blocks x K x M sums
+    // and num_blocks x K counts (and weights, if the points are weighted).
+    private final int num_blocks;
+    private final double[] block_sums;
+    private final int[] block_counts;
+    private final double[] block_masses;
+    private final boolean[] block_changed;
+
+    // Bounds for the accelerated assignment steps, allocated on first use.
+    // upper[jj] bounds the distance from point jj to its assigned center from
+    // above.  Hamerly keeps one lower bound per point on the distance to every
+    // other center; Elkan keeps N x K lower bounds, one per center.
+    private double[] upper;
+    private double[] lower;
+    private double[] old_centers;
+    private double[] drifts;
+    // Half the distance from each center to its closest other center.
+    private double[] half_separations;
+    // K x K center-to-center distances, for Elkan only.
+    private double[] center_dists;
+    // Whether the centers have moved since the bounds were last updated.
+    private boolean drifted;
+
+    public KMeans(double[] points, int N, int M, int K, Random random) {
+        this(points, null, N, M, K, random);
+    }
+
+    /**
+     * Cluster weighted points; weights may be null, meaning every point has
+     * weight one.
+     */
+    public KMeans(double[] points, double[] weights,
+                  int N, int M, int K, Random random) {
+        if (K <= 0 || K > N) {
+            throw new IllegalArgumentException("K must be in [1, N].");
+        }
+        if (points.length < N * M) {
+            throw new IllegalArgumentException("Expected " + N * M + " coordinates.");
+        }
+        if (weights != null && weights.length < N) {
+            throw new IllegalArgumentException("Expected " + N + " weights.");
+        }
+        this.points = points;
+        this.weights = weights;
+        this.N = N;
+        this.M = M;
+        this.K = K;
+        this.random = random;
+        centers = new double[K * M];
+        assignments = new int[N];
+        counts = new int[K];
+        masses = weights == null ? null : new double[K];
+        dist2s = new double[N];
+        cumulative = new double[N];
+        num_blocks = (N + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        block_sums = new double[num_blocks * K * M];
+        block_counts = new int[num_blocks * K];
+        block_masses = weights == null ? null : new double[num_blocks * K];
+        block_changed = new boolean[num_blocks];
+    }
+
+    public static double squaredDist(double[] a, int aOffset,
+                                     double[] b, int bOffset, int M) {
+        double dist2 = 0;
+        for (int mm = 0; mm < M; ++mm) {
+            double d = a[aOffset + mm] - b[bOffset + mm];
+            dist2 += d * d;
+        }
+        return dist2;
+    }
+
+    /**
+     * Draw an index with probability proportional to its share of the
+     * running totals in cumulative, whose last entry is total, by binary
+     * search.  Draws uniformly if the total is zero.
+     */
+    private int sample(double total) {
+        if (!(total > 0.0)) {
+            return (int)(random.nextDouble() * N);
+        }
+
+        double r = random.nextDouble() * total;
+        if (r >= total) {
+            // Rounding may carry r up to the total itself.
+            r = Math.nextAfter(total, 0.0);
+        }
+        // Find the first index whose running total exceeds r; it necessarily
+        // has a positive weight.
+        int lo = 0;
+        int hi = N - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > r) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Choose the initial centers with the K-means++ heuristic.  The distance
+     * from each point to its closest center is kept up to date incrementally,
+     * and the running totals of the sampling weights are built in the same
+     * pass, so adding a center costs one pass over the points plus a binary
+     * search.
+     */
+    public void initialize() {
+        int new_center;
+        if (weights == null) {
+            new_center = (int)(random.nextDouble() * N);
+        } else {
+            double total = 0.0;
+            for (int jj = 0; jj < N; ++jj) {
+                total += weights[jj];
+                cumulative[jj] = total;
+            }
+            new_center = sample(total);
+        }
+        System.arraycopy(points, new_center * M, centers, 0, M);
+
+        for (int kk = 1; kk < K; ++kk) {
+            int previous = (kk - 1) * M;
+            double total = 0.0;
+            for (int jj = 0; jj < N; ++jj) {
+                double dist2 = squaredDist(points, jj * M, centers, previous, M);
+                if (kk == 1 || dist2 < dist2s[jj]) {
+                    dist2s[jj] = dist2;
+                }
+                total += weights == null ? dist2s[jj] : weights[jj] * dist2s[jj];
+                cumulative[jj] = total;
+            }
+            new_center = sample(total);
+            System.arraycopy(points, new_center * M, centers, kk * M, M);
+        }
+
+        for (int jj = 0; jj < N; ++jj) {
+            assignments[jj] = -1;
+        }
+        assigned = false;
+        drifted = false;
+    }
+
+    /**
+     * Assign points [from, to) to their closest centers, returning whether
+     * any assignment changed.  Ties go to the lowest-numbered center.
+     */
+    private boolean assign(int from, int to) {
+        boolean changed = false;
+        for (int jj = from; jj < to; ++jj) {
+            int offset = jj * M;
+            int best = 0;
+            double mindist2 = squaredDist(points, offset, centers, 0, M);
+            for (int kk = 1; kk < K; ++kk) {
+                double dist2 = squaredDist(points, offset, centers, kk * M, M);
+                if (dist2 < mindist2) {
+                    best = kk;
+                    mindist2 = dist2;
+                }
+            }
+            if (best != assignments[jj]) {
+                assignments[jj] = best;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compute half the distance from each center to its nearest neighbouring
+     * center, and for Elkan the full center-to-center distance matrix.
+     */
+    private void computeSeparations(boolean all_pairs) {
+        for (int kk = 0; kk < K; ++kk) {
+            half_separations[kk] = Double.POSITIVE_INFINITY;
+        }
+        for (int kk = 0; kk < K; ++kk) {
+            for (int ll = kk + 1; ll < K; ++ll) {
+                double half_dist = 0.5 * Math.sqrt(
+                    squaredDist(centers, kk * M, centers, ll * M, M));
+                if (all_pairs) {
+                    center_dists[kk * K + ll] = 2 * half_dist;
+                    center_dists[ll * K + kk] = 2 * half_dist;
+                }
+                if (half_dist < half_separations[kk]) {
+                    half_separations[kk] = half_dist;
+                }
+                if (half_dist < half_separations[ll]) {
+                    half_separations[ll] = half_dist;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hamerly's assignment step.  A point keeps its center whenever the upper
+     * bound on the distance to it is strictly below both the lower bound on
+     * the distance to any other center and half the distance from its center
+     * to the nearest other center; otherwise all K distances are computed
+     * exactly as in assign().
+     */
+    private boolean assignHamerly(int from, int to) {
+        boolean changed = false;
+        for (int jj = from; jj < to; ++jj) {
+            int offset = jj * M;
+            int current = assignments[jj];
+            if (current >= 0) {
+                double bound = Math.max(half_separations[current], lower[jj]);
+                if (upper[jj] < bound) {
+                    continue;
+                }
+                upper[jj] = Math.sqrt(
+                    squaredDist(points, offset, centers, current * M, M));
+                if (upper[jj] < bound) {
+                    continue;
+                }
+            }
+
+            int best = 0;
+            double mindist2 = squaredDist(points, offset, centers, 0, M);
+            double second2 = Double.POSITIVE_INFINITY;
+            for (int kk = 1; kk < K; ++kk) {
+                double dist2 = squaredDist(points, offset, centers, kk * M, M);
+                if (dist2 < mindist2) {
+                    second2 = mindist2;
+                    best = kk;
+                    mindist2 = dist2;
+                } else if (dist2 < second2) {
+                    second2 = dist2;
+                }
+            }
+            upper[jj] = Math.sqrt(mindist2);
+            lower[jj] = Math.sqrt(second2);
+            if (best != current) {
+                assignments[jj] = best;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Elkan's assignment step.  Center kk is only examined for point jj if
+     * neither its lower bound nor half the distance between kk and the
+     * current center already exceeds the upper bound.  Candidates are visited
+     * in order and compared on squared distance with ties going to the
+     * lowest-numbered center, so the result matches assign().
+     */
+    private boolean assignElkan(int from, int to) {
+        boolean changed = false;
+        for (int jj = from; jj < to; ++jj) {
+            int offset = jj * M;
+            int base = jj * K;
+            int current = assignments[jj];
+
+            if (current < 0) {
+                int best = 0;
+                double mindist2 = Double.POSITIVE_INFINITY;
+                for (int kk = 0; kk < K; ++kk) {
+                    double dist2 = squaredDist(points, offset, centers, kk * M, M);
+                    lower[base + kk] = Math.sqrt(dist2);
+                    if (dist2 < mindist2) {
+                        best = kk;
+                        mindist2 = dist2;
+                    }
+                }
+                upper[jj] = lower[base + best];
+                assignments[jj] = best;
+                changed = true;
+                continue;
+            }
+
+            int best = current;
+            double bound = upper[jj];
+            if (bound < half_separations[best]) {
+                continue;
+            }
+            boolean stale = true;
+            double mindist2 = 0.0;
+            for (int kk = 0; kk < K; ++kk) {
+                if (kk == best || bound < lower[base + kk] ||
+                    bound < 0.5 * center_dists[best * K + kk]) {
+                    continue;
+                }
+                if (stale) {
+                    mindist2 = squaredDist(points, offset, centers, best * M, M);
+                    bound = Math.sqrt(mindist2);
+                    lower[base + best] = bound;
+                    stale = false;
+                    if (bound < lower[base + kk] ||
+                        bound < 0.5 * center_dists[best * K + kk]) {
+                        continue;
+                    }
+                }
+                double dist2 = squaredDist(points, offset, centers, kk * M, M);
+                lower[base + kk] = Math.sqrt(dist2);
+                if (dist2 < mindist2 || (dist2 == mindist2 && kk < best)) {
+                    best = kk;
+                    mindist2 = dist2;
+                    bound = lower[base + kk];
+                }
+            }
+            upper[jj] = bound;
+            if (best != current) {
+                assignments[jj] = best;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Loosen the bounds of points [from, to) by how far each center moved in
+     * the last update, so that they remain valid for the new centers.
+     */
+    private void updateBounds(Algorithm algorithm, int from, int to,
+                              int farthest, double max_drift, double second_drift) {
+        for (int jj = from; jj < to; ++jj) {
+            int current = assignments[jj];
+            upper[jj] += drifts[current];
+            if (algorithm == Algorithm.HAMERLY) {
+                lower[jj] -= current == farthest ? second_drift : max_drift;
+            } else {
+                int base = jj * K;
+                for (int kk = 0; kk < K; ++kk) {
+                    lower[base + kk] = Math.max(0.0, lower[base + kk] - drifts[kk]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Process one block of points: bring their bounds up to date, assign
+     * them, and total up the block's contribution to the new centers.
+     * Blocks touch disjoint parts of the per-point and per-block arrays, so
+     * they may run concurrently.
+     */
+    private void runBlock(Algorithm algorithm, int block,
+                          int farthest, double max_drift, double second_drift) {
+        int from = block * BLOCK_SIZE;
+        int to = Math.min(N, from + BLOCK_SIZE);
+
+        boolean changed;
+        switch (algorithm) {
+        case HAMERLY:
+        case ELKAN:
+            if (drifted) {
+                updateBounds(algorithm, from, to, farthest, max_drift, second_drift);
+            }
+            changed = algorithm == Algorithm.HAMERLY ?
+                assignHamerly(from, to) : assignElkan(from, to);
+            break;
+        default:
+            changed = assign(from, to);
+            break;
+        }
+        block_changed[block] = changed;
+
+        int sums = block * K * M;
+        int totals = block * K;
+        for (int ii = 0; ii < K * M; ++ii) {
+            block_sums[sums + ii] = 0.0;
+        }
+        for (int kk = 0; kk < K; ++kk) {
+            block_counts[totals + kk] = 0;
+            if (weights != null) {
+                block_masses[totals + kk] = 0.0;
+            }
+        }
+        for (int jj = from; jj < to; ++jj) {
+            int kk = assignments[jj];
+            int offset = sums + kk * M;
+            block_counts[totals + kk]++;
+            if (weights == null) {
+                for (int mm = 0; mm < M; ++mm) {
+                    block_sums[offset + mm] += points[jj * M + mm];
+                }
+            } else {
+                double weight = weights[jj];
+                block_masses[totals + kk] += weight;
+                for (int mm = 0; mm < M; ++mm) {
+                    block_sums[offset + mm] += weight * points[jj * M + mm];
+                }
+            }
+        }
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Algorithm algorithm;
+        private final int from_block;
+        private final int to_block;
+        private final int farthest;
+        private final double max_drift;
+        private final double second_drift;
+
+        BlockTask(Algorithm algorithm, int from_block, int to_block,
+                  int farthest, double max_drift, double second_drift) {
+            this.algorithm = algorithm;
+            this.from_block = from_block;
+            this.to_block = to_block;
+            this.farthest = farthest;
+            this.max_drift = max_drift;
+            this.second_drift = second_drift;
+        }
+
+        @Override
+        protected void compute() {
+            if (to_block - from_block == 1) {
+                runBlock(algorithm, from_block, farthest, max_drift, second_drift);
+                return;
+            }
+            int middle = (from_block + to_block) >>> 1;
+            invokeAll(new BlockTask(algorithm, from_block, middle,
+                                    farthest, max_drift, second_drift),
+                      new BlockTask(algorithm, middle, to_block,
+                                    farthest, max_drift, second_drift));
+        }
+    }
+
+    /**
+     * Run one assignment step over all the blocks, on the pool if there is
+     * one, and merge the per-block counts in block order.  Returns whether
+     * any assignment changed.
+     */
+    private boolean assignAll(Algorithm algorithm, ForkJoinPool pool) {
+        int farthest = 0;
+        double max_drift = 0.0;
+        double second_drift = 0.0;
+        if (algorithm != Algorithm.LLOYD) {
+            computeSeparations(algorithm == Algorithm.ELKAN);
+            if (drifted) {
+                for (int kk = 0; kk < K; ++kk) {
+                    if (drifts[kk] > max_drift) {
+                        second_drift = max_drift;
+                        max_drift = drifts[kk];
+                        farthest = kk;
+                    } else if (drifts[kk] > second_drift) {
+                        second_drift = drifts[kk];
+                    }
+                }
+            }
+        }
+
+        if (pool == null || num_blocks == 1) {
+            for (int block = 0; block < num_blocks; ++block) {
+                runBlock(algorithm, block, farthest, max_drift, second_drift);
+            }
+        } else {
+            pool.invoke(new BlockTask(algorithm, 0, num_blocks,
+                                      farthest, max_drift, second_drift));
+        }
+        drifted = false;
+        assigned = true;
+
+        boolean changed = false;
+        for (int kk = 0; kk < K; ++kk) {
+            counts[kk] = 0;
+        }
+        for (int block = 0; block < num_blocks; ++block) {
+            changed |= block_changed[block];
+            for (int kk = 0; kk < K; ++kk) {
+                counts[kk] += block_counts[block * K + kk];
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Move each center to the (weighted) mean of its assigned points, adding
+     * up the per-block sums in block order.  A center with no points, or only
+     * zero-weight points, is moved to the origin.
+     */
+    private void updateCenters() {
+        for (int ii = 0; ii < K * M; ++ii) {
+            centers[ii] = 0.0;
+        }
+        if (weights != null) {
+            for (int kk = 0; kk < K; ++kk) {
+                masses[kk] = 0.0;
+            }
+        }
+        for (int block = 0; block < num_blocks; ++block) {
+            int sums = block * K * M;
+            for (int ii = 0; ii < K * M; ++ii) {
+                centers[ii] += block_sums[sums + ii];
+            }
+            if (weights != null) {
+                for (int kk = 0; kk < K; ++kk) {
+                    masses[kk] += block_masses[block * K + kk];
+                }
+            }
+        }
+        for (int kk = 0; kk < K; ++kk) {
+            double total = weights == null ? counts[kk] : masses[kk];
+            if (total > 0) {
+                for (int mm = 0; mm < M; ++mm) {
+                    centers[kk * M + mm] /= total;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run Lloyd's algorithm until the assignments stop changing or
+     * max_iterations iterations have elapsed.  Returns the number of
+     * iterations performed.
+     */
+    public int iterate(int max_iterations) {
+        return iterate(max_iterations, Algorithm.LLOYD, null);
+    }
+
+    /**
+     * As iterate(max_iterations), but performing the assignment step with the
+     * given algorithm, and running the blocks of points on the given pool if
+     * it is not null.
+     */
+    public int iterate(int max_iterations, Algorithm algorithm, ForkJoinPool pool) {
+        if (algorithm != Algorithm.LLOYD && upper == null) {
+            upper = new double[N];
+            lower = new double[algorithm == Algorithm.ELKAN ? N * K : N];
+            old_centers = new double[K * M];
+            drifts = new double[K];
+            half_separations = new double[K];
+            if (algorithm == Algorithm.ELKAN) {
+                center_dists = new double[K * K];
+            }
+        }
+
+        int ii = 0;
+        while (ii < max_iterations) {
+            ++ii;
+            if (!assignAll(algorithm, pool)) {
+                break;
+            }
+            if (algorithm != Algorithm.LLOYD) {
+                System.arraycopy(centers, 0, old_centers, 0, K * M);
+            }
+            updateCenters();
+            if (algorithm != Algorithm.LLOYD) {
+                for (int kk = 0; kk < K; ++kk) {
+                    drifts[kk] = Math.sqrt(
+                        squaredDist(old_centers, kk * M, centers, kk * M, M));
+                }
+                drifted = true;
+            }
+        }
+        if (!assigned) {
+            assignAll(Algorithm.LLOYD, pool);
+        }
+        return ii;
+    }
+
+    /** The K x M row-major centers. */
+    public double[] getCenters() {
+        return centers;
+    }
+
+    public int[] getAssignments() {
+        return assignments;
+    }
+
+    /** The number of points assigned to each cluster. */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /** The total weight of the points assigned to each cluster. */
+    public double[] getMasses() {
+        double[] result = new double[K];
+        for (int jj = 0; jj < N; ++jj) {
+            result[assignments[jj]] += weights == null ? 1.0 : weights[jj];
+        }
+        return result;
+    }
+
+    /**
+     * The (weighted) sum of squared distances from each center to the points
+     * assigned to it.
+     */
+    public double[] getSquaredErrors() {
+        double[] errors = new double[K];
+        for (int jj = 0; jj < N; ++jj) {
+            int kk = assignments[jj];
+            double dist2 = squaredDist(points, jj * M, centers, kk * M, M);
+            errors[kk] += weights == null ? dist2 : weights[jj] * dist2;
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,174 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Random;
+
+/**
+ * A bounded summary of a stream of points for K-means, built by merge and
+ * reduce.  Points are buffered as weighted centroids and whenever the buffer
+ * holds 2 * SKETCH_FACTOR * K of them it is reduced to SKETCH_FACTOR * K by a
+ * weighted K-means++ seeding followed by one Lloyd step.  Each centroid keeps
+ * the total weight and the sum of squared distances of the points it has
+ * absorbed, so clustering the sketch reports the same statistics as
+ * clustering the raw points would.  Two sketches merge by pooling their
+ * centroids and reducing again, so memory stays O(K * M) no matter how many
+ * points are added or how many partial sketches are combined.
+ */
+public class KMeansSketch {
+    public static final int SKETCH_FACTOR = 10;
+
+    private final int K;
+    private final int capacity;
+    private final Random random;
+
+    // The dimensionality, fixed by the first point added.
+    private int M = -1;
+    private int size = 0;
+    // size x M, row-major.
+    private double[] centroids;
+    private double[] weights;
+    private double[] errors;
+
+    public KMeansSketch(int K, Random random) {
+        if (K <= 0) {
+            throw new IllegalArgumentException("K should be positive.");
+        }
+        this.K = K;
+        this.capacity = SKETCH_FACTOR * K;
+        this.random = random;
+    }
+
+    public int getK() {
+        return K;
+    }
+
+    /** The dimensionality of the points, or -1 if the sketch is empty. */
+    public int getDimension() {
+        return M;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double[] getCentroids() {
+        return centroids;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * The sum of squared distances from each centroid to the points it
+     * summarizes.
+     */
+    public double[] getErrors() {
+        return errors;
+    }
+
+    public void add(double[] point) {
+        add(point, 0, point.length, 1.0, 0.0);
+    }
+
+    /**
+     * Add a centroid of the given weight whose M coordinates start at
+     * coords[offset], and which summarizes points whose squared distances
+     * from it sum to error.
+     */
+    public void add(double[] coords, int offset, int M,
+                    double weight, double error) {
+        if (this.M < 0) {
+            this.M = M;
+            centroids = new double[2 * capacity * M];
+            weights = new double[2 * capacity];
+            errors = new double[2 * capacity];
+        } else if (this.M != M) {
+            throw new IllegalArgumentException("Sizes of tuples do not match.");
+        }
+
+        if (size == 2 * capacity) {
+            reduce();
+        }
+        System.arraycopy(coords, offset, centroids, size * M, M);
+        weights[size] = weight;
+        errors[size] = error;
+        ++size;
+    }
+
+    public void merge(KMeansSketch other) {
+        for (int ii = 0; ii < other.size; ++ii) {
+            add(other.centroids, ii * other.M, other.M,
+                other.weights[ii], other.errors[ii]);
+        }
+    }
+
+    /** Shrink the sketch to at most SKETCH_FACTOR * K centroids. */
+    public void compact() {
+        if (size > capacity) {
+            reduce();
+        }
+    }
+
+    private void reduce() {
+        KMeans kmeans = new KMeans(centroids, weights, size, M, capacity, random);
+        kmeans.initialize();
+        kmeans.iterate(1);
+
+        double[] centers = kmeans.getCenters();
+        double[] masses = kmeans.getMasses();
+        double[] center_errors = kmeans.getSquaredErrors();
+        int[] assignments = kmeans.getAssignments();
+        for (int ii = 0; ii < size; ++ii) {
+            center_errors[assignments[ii]] += errors[ii];
+        }
+
+        size = 0;
+        for (int kk = 0; kk < capacity; ++kk) {
+            if (masses[kk] > 0) {
+                System.arraycopy(centers, kk * M, centroids, size * M, M);
+                weights[size] = masses[kk];
+                errors[size] = center_errors[kk];
+                ++size;
+            }
+        }
+    }
+
+    /**
+     * Cluster the summarized points into K clusters, running at most
+     * max_iterations Lloyd iterations.  Returns one row per center holding
+     * the M mean coordinates, the average squared distance of the points from
+     * the mean and the total weight of the points.  Fewer than K rows are
+     * returned if the sketch holds fewer than K centroids.
+     */
+    public double[][] cluster(int max_iterations) {
+        if (size <= K) {
+            double[][] result = new double[size][M + 2];
+            for (int ii = 0; ii < size; ++ii) {
+                System.arraycopy(centroids, ii * M, result[ii], 0, M);
+                result[ii][M] = errors[ii] / weights[ii];
+                result[ii][M + 1] = weights[ii];
+            }
+            return result;
+        }
+
+        KMeans kmeans = new KMeans(centroids, weights, size, M, K, random);
+        kmeans.initialize();
+        kmeans.iterate(max_iterations);
+
+        double[] centers = kmeans.getCenters();
+        double[] masses = kmeans.getMasses();
+        double[] center_errors = kmeans.getSquaredErrors();
+        int[] assignments = kmeans.getAssignments();
+        for (int ii = 0; ii < size; ++ii) {
+            center_errors[assignments[ii]] += errors[ii];
+        }
+
+        double[][] result = new double[K][M + 2];
+        for (int kk = 0; kk < K; ++kk) {
+            System.arraycopy(centers, kk * M, result[kk], 0, M);
+            result[kk][M] = center_errors[kk] / masses[kk];
+            result[kk][M + 1] = masses[kk];
+        }
+        return result;
+    }
+}
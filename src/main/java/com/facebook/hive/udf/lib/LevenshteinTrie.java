@@ -0,0 +1,175 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A dictionary of strings for finding the terms nearest to a string in
+ * Levenshtein distance without comparing it to every term.
+ *
+ * The terms are kept in a trie, which is walked depth first while filling in
+ * one row of the edit distance dynamic program per node: the row of a node
+ * is the distance from every prefix of the query to the node's prefix, so
+ * terms sharing a prefix share the work for it, and once every entry of a
+ * row exceeds the search radius no term below the node can be within it, so
+ * the subtree is skipped.  The radius shrinks to the distance of the nearest
+ * term found so far.  A lookup within a distance of 1 or 2 visits a small
+ * fraction of the trie, and the radius can be chosen per lookup.
+ *
+ * Nodes are kept in parallel arrays (character, first child, next sibling,
+ * whether a term ends there) rather than as objects, so a node costs 15
+ * bytes.  The rows of the dynamic program are kept between lookups, so a
+ * trie must not be searched from several threads at once.
+ */
+public class LevenshteinTrie {
+    private char[] labels = new char[16];
+    private int[] first_child = new int[16];
+    private int[] next_sibling = new int[16];
+    private boolean[] terminal = new boolean[16];
+    private int num_nodes;
+    private int size = 0;
+
+    // The longest term; no search goes deeper than this.
+    private int max_length = 0;
+
+    private final Search search = new Search();
+
+    public LevenshteinTrie() {
+        num_nodes = 1;
+        first_child[0] = -1;
+        next_sibling[0] = -1;
+    }
+
+    /** The number of distinct terms. */
+    public int size() {
+        return size;
+    }
+
+    public void add(String term) {
+        int node = 0;
+        for (int ii = 0; ii < term.length(); ++ii) {
+            char c = term.charAt(ii);
+            int child = first_child[node];
+            while (child != -1 && labels[child] != c) {
+                child = next_sibling[child];
+            }
+            if (child == -1) {
+                child = newNode(c);
+                next_sibling[child] = first_child[node];
+                first_child[node] = child;
+            }
+            node = child;
+        }
+        if (!terminal[node]) {
+            terminal[node] = true;
+            ++size;
+            max_length = Math.max(max_length, term.length());
+        }
+    }
+
+    private int newNode(char label) {
+        if (num_nodes == labels.length) {
+            int capacity = 2 * num_nodes;
+            labels = Arrays.copyOf(labels, capacity);
+            first_child = Arrays.copyOf(first_child, capacity);
+            next_sibling = Arrays.copyOf(next_sibling, capacity);
+            terminal = Arrays.copyOf(terminal, capacity);
+        }
+        labels[num_nodes] = label;
+        first_child[num_nodes] = -1;
+        next_sibling[num_nodes] = -1;
+        return num_nodes++;
+    }
+
+    /**
+     * The state of a lookup.  rows[d] is the row of the node at depth d on
+     * the current path; the rows only grow, to the largest lookup so far.
+     */
+    private static class Search {
+        String query;
+        int max_depth;
+        int[][] rows = new int[1][1];
+        char[] path = new char[0];
+        int best;
+        List<String> result;
+
+        void start(String query, int max_depth, int max) {
+            this.query = query;
+            this.max_depth = max_depth;
+            int width = Math.max(query.length() + 1, rows[0].length);
+            if (rows.length < max_depth + 1 || rows[0].length < query.length() + 1) {
+                rows = new int[Math.max(max_depth + 1, rows.length)][width];
+            }
+            if (path.length < max_depth) {
+                path = new char[max_depth];
+            }
+            best = max;
+            result = new ArrayList<String>();
+        }
+    }
+
+    /**
+     * The terms nearest to s, in order, if they are within max of it, and
+     * an empty list otherwise.
+     */
+    public List<String> nearest(String s, int max) {
+        if (size == 0 || max < 0) {
+            return new ArrayList<String>();
+        }
+        // A node deeper than s.length() + max is more than max from s.
+        search.start(s, (int) Math.min(max_length, (long) s.length() + max), max);
+        int[] root = search.rows[0];
+        for (int ii = 0; ii <= s.length(); ++ii) {
+            root[ii] = ii;
+        }
+        if (terminal[0] && s.length() <= search.best) {
+            search.best = s.length();
+            search.result.add("");
+        }
+        if (search.max_depth > 0) {
+            for (int child = first_child[0]; child != -1; child = next_sibling[child]) {
+                visit(search, child, 1);
+            }
+        }
+        Collections.sort(search.result);
+        List<String> result = search.result;
+        search.query = null;
+        search.result = null;
+        return result;
+    }
+
+    private void visit(Search search, int node, int depth) {
+        String query = search.query;
+        int n = query.length();
+        int[] previous = search.rows[depth - 1];
+        int[] row = search.rows[depth];
+        char c = labels[node];
+        search.path[depth - 1] = c;
+
+        row[0] = depth;
+        int row_min = depth;
+        for (int ii = 1; ii <= n; ++ii) {
+            int cost = query.charAt(ii - 1) == c ? 0 : 1;
+            int d = Math.min(Math.min(row[ii - 1], previous[ii]) + 1, previous[ii - 1] + cost);
+            row[ii] = d;
+            if (d < row_min) {
+                row_min = d;
+            }
+        }
+
+        if (terminal[node] && row[n] <= search.best) {
+            if (row[n] < search.best) {
+                search.best = row[n];
+                search.result.clear();
+            }
+            search.result.add(new String(search.path, 0, depth));
+        }
+        if (row_min <= search.best && depth < search.max_depth) {
+            for (int child = first_child[node]; child != -1; child = next_sibling[child]) {
+                visit(search, child, depth + 1);
+            }
+        }
+    }
+}
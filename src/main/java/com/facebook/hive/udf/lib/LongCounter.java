@@ -0,0 +1,178 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Arrays;
+
+/**
+ * A Counter for long keys, without boxing.  Keys and int counts live in two
+ * parallel primitive arrays addressed by linear probing, so an increment is a
+ * single probe with no allocation; the table doubles whenever it is more than
+ * three quarters full.  Key 0 marks an empty slot, so its count is kept
+ * outside the table.  The total is a long.
+ *
+ * sort() moves the entries to the front of the arrays in ascending key order
+ * so that they can be read with getKeys() and getCounts() without copying.
+ * The counter cannot be incremented after sorting until clear() is called.
+ */
+public class LongCounter {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] counts;
+    private int mask;
+    private int size = 0;
+    private long totalCount = 0;
+
+    private boolean has_zero = false;
+    private int zero_count = 0;
+
+    private boolean sorted = false;
+
+    public LongCounter() {
+        keys = new long[MIN_CAPACITY];
+        counts = new int[MIN_CAPACITY];
+        mask = MIN_CAPACITY - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0L);
+        Arrays.fill(counts, 0);
+        size = 0;
+        totalCount = 0;
+        has_zero = false;
+        zero_count = 0;
+        sorted = false;
+    }
+
+    public void increment(long key) {
+        increment(key, 1);
+    }
+
+    public void increment(long key, int amount) {
+        add(key, amount);
+        totalCount += amount;
+    }
+
+    private void add(long key, int amount) {
+        if (sorted) {
+            throw new IllegalStateException("The counter has been sorted.");
+        }
+        if (key == 0) {
+            if (!has_zero) {
+                has_zero = true;
+                ++size;
+            }
+            zero_count += amount;
+            return;
+        }
+        int ii = (int) Hashing.fmix64(key) & mask;
+        while (keys[ii] != 0) {
+            if (keys[ii] == key) {
+                counts[ii] += amount;
+                return;
+            }
+            ii = (ii + 1) & mask;
+        }
+        keys[ii] = key;
+        counts[ii] = amount;
+        if (++size > keys.length * 3 / 4) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] old_keys = keys;
+        int[] old_counts = counts;
+        keys = new long[2 * old_keys.length];
+        counts = new int[keys.length];
+        mask = keys.length - 1;
+        for (int jj = 0; jj < old_keys.length; ++jj) {
+            if (old_keys[jj] != 0) {
+                int ii = (int) Hashing.fmix64(old_keys[jj]) & mask;
+                while (keys[ii] != 0) {
+                    ii = (ii + 1) & mask;
+                }
+                keys[ii] = old_keys[jj];
+                counts[ii] = old_counts[jj];
+            }
+        }
+    }
+
+    public int getCount(long key) {
+        if (sorted) {
+            throw new IllegalStateException("The counter has been sorted.");
+        }
+        if (key == 0) {
+            return zero_count;
+        }
+        for (int ii = (int) Hashing.fmix64(key) & mask; keys[ii] != 0; ii = (ii + 1) & mask) {
+            if (keys[ii] == key) {
+                return counts[ii];
+            }
+        }
+        return 0;
+    }
+
+    public void addAll(LongCounter counter) {
+        if (counter.sorted) {
+            for (int ii = 0; ii < counter.size; ++ii) {
+                add(counter.keys[ii], counter.counts[ii]);
+            }
+        } else {
+            for (int ii = 0; ii < counter.keys.length; ++ii) {
+                if (counter.keys[ii] != 0) {
+                    add(counter.keys[ii], counter.counts[ii]);
+                }
+            }
+            if (counter.has_zero) {
+                add(0, counter.zero_count);
+            }
+        }
+        totalCount += counter.totalCount;
+    }
+
+    /**
+     * Move the entries to [0, size()) of getKeys() and getCounts(), in
+     * ascending order of key.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        // The table always has a free slot left over for key 0.
+        int out = 0;
+        for (int ii = 0; ii < keys.length; ++ii) {
+            if (keys[ii] != 0) {
+                keys[out] = keys[ii];
+                counts[out] = counts[ii];
+                ++out;
+            }
+        }
+        if (has_zero) {
+            keys[out] = 0;
+            counts[out] = zero_count;
+            ++out;
+        }
+        Arrays.fill(keys, out, keys.length, 0L);
+        Arrays.fill(counts, out, counts.length, 0);
+        Sorting.sortByKey(keys, counts, 0, out);
+        sorted = true;
+    }
+
+    /** The keys, in [0, size()) and ascending order once sorted. */
+    public long[] getKeys() {
+        return keys;
+    }
+
+    /** The counts, parallel to getKeys(). */
+    public int[] getCounts() {
+        return counts;
+    }
+}
@@ -0,0 +1,205 @@
+package com.facebook.hive.udf.lib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A map from long keys to double values, for aggregations that would
+ * otherwise keep a HashMap<LongWritable, DoubleWritable> and pay for an entry
+ * object and two boxes per key.  Keys and values live in two parallel
+ * primitive arrays addressed by linear probing; the table doubles whenever it
+ * is more than three quarters full.  Key 0 marks an empty slot, so it is kept
+ * outside the table.
+ *
+ * sort() moves the entries to the front of the arrays in ascending key order
+ * so that they can be read with getKeys() and getValues() without copying.
+ * The map cannot be modified after sorting until clear() is called.
+ *
+ * The binary form is [n: int, (key: long, value: double) * n].
+ */
+public class LongDoubleMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private double[] values;
+    private int mask;
+    private int size = 0;
+
+    private boolean has_zero = false;
+    private double zero_value = 0.0;
+
+    private boolean sorted = false;
+
+    public LongDoubleMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongDoubleMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new double[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (size > 0 || sorted) {
+            Arrays.fill(keys, 0L);
+            Arrays.fill(values, 0.0);
+        }
+        size = 0;
+        has_zero = false;
+        zero_value = 0.0;
+        sorted = false;
+    }
+
+    private static int slot(long key, int mask) {
+        // The finalizer of murmur3's 64 bit hash, so that keys which differ
+        // only in their high bits still spread over the table.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /** Add delta to the value of key, which starts at 0 if absent. */
+    public void add(long key, double delta) {
+        if (sorted) {
+            throw new IllegalStateException("The map has been sorted.");
+        }
+        if (key == 0) {
+            if (!has_zero) {
+                has_zero = true;
+                ++size;
+            }
+            zero_value += delta;
+            return;
+        }
+        int ii = slot(key, mask);
+        while (keys[ii] != 0) {
+            if (keys[ii] == key) {
+                values[ii] += delta;
+                return;
+            }
+            ii = (ii + 1) & mask;
+        }
+        keys[ii] = key;
+        values[ii] = delta;
+        if (++size > keys.length * 3 / 4) {
+            grow();
+        }
+    }
+
+    /** The value of key, or 0 if it is absent. */
+    public double get(long key) {
+        if (sorted) {
+            throw new IllegalStateException("The map has been sorted.");
+        }
+        if (key == 0) {
+            return zero_value;
+        }
+        for (int ii = slot(key, mask); keys[ii] != 0; ii = (ii + 1) & mask) {
+            if (keys[ii] == key) {
+                return values[ii];
+            }
+        }
+        return 0.0;
+    }
+
+    private void grow() {
+        long[] old_keys = keys;
+        double[] old_values = values;
+        keys = new long[2 * old_keys.length];
+        values = new double[2 * old_values.length];
+        mask = keys.length - 1;
+        for (int jj = 0; jj < old_keys.length; ++jj) {
+            if (old_keys[jj] != 0) {
+                int ii = slot(old_keys[jj], mask);
+                while (keys[ii] != 0) {
+                    ii = (ii + 1) & mask;
+                }
+                keys[ii] = old_keys[jj];
+                values[ii] = old_values[jj];
+            }
+        }
+    }
+
+    /**
+     * Move the entries to [0, size()) of getKeys() and getValues(), in
+     * ascending order of key.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        // The table always has a free slot left over for key 0.
+        int out = 0;
+        for (int ii = 0; ii < keys.length; ++ii) {
+            if (keys[ii] != 0) {
+                keys[out] = keys[ii];
+                values[out] = values[ii];
+                ++out;
+            }
+        }
+        if (has_zero) {
+            keys[out] = 0;
+            values[out] = zero_value;
+            ++out;
+        }
+        Arrays.fill(keys, out, keys.length, 0L);
+        Arrays.fill(values, out, values.length, 0.0);
+        Sorting.sortByKey(keys, values, 0, out);
+        sorted = true;
+    }
+
+    /** The keys, in [0, size()) and ascending order once sorted. */
+    public long[] getKeys() {
+        return keys;
+    }
+
+    /** The values, parallel to getKeys(). */
+    public double[] getValues() {
+        return values;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 16 * size);
+        buffer.putInt(size);
+        if (sorted) {
+            for (int ii = 0; ii < size; ++ii) {
+                buffer.putLong(keys[ii]);
+                buffer.putDouble(values[ii]);
+            }
+        } else {
+            for (int ii = 0; ii < keys.length; ++ii) {
+                if (keys[ii] != 0) {
+                    buffer.putLong(keys[ii]);
+                    buffer.putDouble(values[ii]);
+                }
+            }
+            if (has_zero) {
+                buffer.putLong(0L);
+                buffer.putDouble(zero_value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /** Add every entry of a serialized map to this one. */
+    public void addBytes(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int n = buffer.getInt();
+        for (int ii = 0; ii < n; ++ii) {
+            long key = buffer.getLong();
+            add(key, buffer.getDouble());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Arrays;
+
+/**
+ * MinHash signatures of sets of 64 bit hashes (Broder, "On the resemblance
+ * and containment of documents", 1997).  Slot k of a signature is the least
+ * value of fmix64(hash ^ seed_k) over the set, so two sets agree in a slot
+ * with probability equal to their Jaccard similarity, and the fraction of
+ * agreeing slots estimates it with a standard error of at most
+ * 0.5 / sqrt(num_hashes).  The signature of a union is the slot-wise minimum
+ * of the signatures, so signatures merge.
+ *
+ * For finding similar pairs without comparing every pair, bands() hashes
+ * each of b bands of r = num_hashes / b slots into a single key (locality
+ * sensitive hashing).  Sets of similarity s share at least one band key with
+ * probability 1 - (1 - s^r)^b.
+ *
+ * The signature of the empty set is all Long.MAX_VALUE.
+ */
+public class MinHash {
+    private final long[] seeds;
+    private final long[] mins;
+
+    public MinHash(int num_hashes) {
+        if (num_hashes <= 0) {
+            throw new IllegalArgumentException("The number of hashes must be positive.");
+        }
+        seeds = new long[num_hashes];
+        for (int ii = 0; ii < num_hashes; ++ii) {
+            seeds[ii] = Hashing.fmix64((ii + 1) * 0x9e3779b97f4a7c15L);
+        }
+        mins = new long[num_hashes];
+        reset();
+    }
+
+    public int getNumHashes() {
+        return mins.length;
+    }
+
+    public void reset() {
+        Arrays.fill(mins, Long.MAX_VALUE);
+    }
+
+    public void add(long hash) {
+        for (int ii = 0; ii < mins.length; ++ii) {
+            long h = Hashing.fmix64(hash ^ seeds[ii]);
+            if (h < mins[ii]) {
+                mins[ii] = h;
+            }
+        }
+    }
+
+    /** Merge in slot k of another signature of the same length. */
+    public void merge(int k, long value) {
+        if (value < mins[k]) {
+            mins[k] = value;
+        }
+    }
+
+    /** The signature; it is not copied, and changes as values are added. */
+    public long[] getSignature() {
+        return mins;
+    }
+
+    /**
+     * The estimated Jaccard similarity of the sets of two signatures of the
+     * same length.  Slots which are empty in both do not count as agreeing,
+     * so that as in SetOps.jaccard two empty sets have similarity 0.
+     */
+    public static double jaccard(long[] a, long[] b, int length) {
+        int agree = 0;
+        for (int ii = 0; ii < length; ++ii) {
+            if (a[ii] == b[ii] && a[ii] != Long.MAX_VALUE) {
+                ++agree;
+            }
+        }
+        return (double) agree / length;
+    }
+
+    /**
+     * The LSH keys of a signature: one hash for each of num_bands bands of
+     * length / num_bands consecutive slots, which must divide evenly.  The
+     * band number is hashed in too, but candidates should still be matched
+     * on the band as well as the key.
+     */
+    public static long[] bands(long[] signature, int length, int num_bands) {
+        if (num_bands <= 0 || length % num_bands != 0) {
+            throw new IllegalArgumentException(
+                "The number of bands must divide the number of hashes.");
+        }
+        int rows = length / num_bands;
+        long[] keys = new long[num_bands];
+        for (int band = 0; band < num_bands; ++band) {
+            long h = Hashing.fmix64(band);
+            for (int ii = band * rows; ii < (band + 1) * rows; ++ii) {
+                h = Hashing.fmix64(h ^ signature[ii]);
+            }
+            keys[band] = h;
+        }
+        return keys;
+    }
+}
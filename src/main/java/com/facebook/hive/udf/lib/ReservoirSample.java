@@ -0,0 +1,141 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A uniform random sample of n items from a stream, without replacement,
+ * in O(n) memory.  Items are offered one at a time using Algorithm L (Li,
+ * "Reservoir-Sampling Algorithms of Time Complexity O(n(1 + log(N/n)))",
+ * 1994), which draws the number of items to skip before the next one enters
+ * the sample rather than a random number per item, so most offers are a
+ * comparison and an increment.
+ *
+ * Samples of disjoint streams can be merged: merge() takes the other sample
+ * and the number of items it was drawn from, decides how many of the merged
+ * sample come from each side with the hypergeometric draw that sampling the
+ * concatenated stream would have made, and picks that many items at random
+ * from each side.  Once a full sample has been merged, later offers fall back
+ * to drawing a random number per item, which is still exact.
+ */
+public class ReservoirSample<E> {
+    private final int n;
+    private final Random random;
+    private ArrayList<E> items;
+    private long count = 0;
+
+    // Algorithm L: the log of the largest key in the sample, and the index
+    // of the next item to enter it, or -1 after a merge.
+    private double log_w;
+    private long next;
+
+    public ReservoirSample(int n, Random random) {
+        if (n < 0) {
+            throw new IllegalArgumentException("The sample size must be non-negative.");
+        }
+        this.n = n;
+        this.random = random;
+        this.items = new ArrayList<E>(Math.min(n, 1024));
+        this.next = n == 0 ? Long.MAX_VALUE : n;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /** The number of items offered, including those of merged samples. */
+    public long getCount() {
+        return count;
+    }
+
+    /** The sample, in no particular order. */
+    public List<E> getItems() {
+        return items;
+    }
+
+    public void offer(E item) {
+        if (count < n) {
+            items.add(item);
+            if (++count == n) {
+                log_w = Math.log(uniform()) / n;
+                next = skip(count);
+            }
+        } else if (next < 0) {
+            if (random.nextDouble() * (count + 1) < n) {
+                items.set(random.nextInt(n), item);
+            }
+            ++count;
+        } else {
+            if (count == next) {
+                items.set(random.nextInt(n), item);
+                log_w += Math.log(uniform()) / n;
+                next = skip(count + 1);
+            }
+            ++count;
+        }
+    }
+
+    /** A uniform double in (0, 1]. */
+    private double uniform() {
+        return 1.0 - random.nextDouble();
+    }
+
+    private long skip(long from) {
+        // log(1 - w), accurately for w close to 0 or 1.
+        double skip = Math.floor(Math.log(uniform()) / Math.log1p(-Math.exp(log_w)));
+        if (!(skip < Long.MAX_VALUE - from)) {
+            return Long.MAX_VALUE;
+        }
+        return from + (long) skip;
+    }
+
+    /**
+     * Merge the sample other_items of other_count items from another stream
+     * into this sample.  other_items must hold min(n, other_count) items.
+     */
+    public void merge(List<? extends E> other_items, long other_count) {
+        if (other_count < 0 || other_items.size() != Math.min(n, other_count)) {
+            throw new IllegalArgumentException("Samples of different sizes cannot be merged.");
+        }
+        if (other_count == 0) {
+            return;
+        }
+        long total = count + other_count;
+        int size = (int) Math.min(n, total);
+
+        // How many of the merged sample come from this side.
+        int from_this = 0;
+        long left_this = count;
+        long left_other = other_count;
+        for (int ii = 0; ii < size; ++ii) {
+            if (random.nextDouble() * (left_this + left_other) < left_this) {
+                ++from_this;
+                --left_this;
+            } else {
+                --left_other;
+            }
+        }
+
+        ArrayList<E> merged = new ArrayList<E>(Math.max(size, items.size()));
+        choose(items, from_this, merged);
+        choose(new ArrayList<E>(other_items), size - from_this, merged);
+        items = merged;
+        count = total;
+        if (count >= n) {
+            next = -1;
+        }
+    }
+
+    /** Append k items chosen at random from candidates to result. */
+    private void choose(ArrayList<E> candidates, int k, ArrayList<E> result) {
+        int size = candidates.size();
+        for (int ii = 0; ii < k; ++ii) {
+            int jj = ii + random.nextInt(size - ii);
+            E chosen = candidates.get(jj);
+            candidates.set(jj, candidates.get(ii));
+            candidates.set(ii, chosen);
+            result.add(chosen);
+        }
+    }
+}
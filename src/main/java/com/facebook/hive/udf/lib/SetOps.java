@@ -36,21 +36,19 @@ public class SetOps {
     }
 
     public static double jaccard(Collection<String> s1, Collection<String> s2) {
-        SetPair p = new SetPair(s1,s2);
         if (s1.size()==0 && s2.size()==0) return 0;
         // don't calculate the union, that's more expense
 //        double dice = 2.0 * p.intersectSize() / (s1.size() + s2.size());
-        double AB = p.intersectSize();
+        double AB = intersectSize(s1, s2);
         return AB / (s1.size() + s2.size() - AB);
     }
 
     public static double sampleCorrectedJaccard(Collection<String> sample1, Collection<String> sample2,
             int fullSize1, int fullSize2) {
-        SetPair p = new SetPair(sample1,sample2);
         if (sample1.size()==0 && sample2.size()==0) return 0;
         double alpha = sample1.size()*1.0 / fullSize1;
         double beta = sample2.size()*1.0 / fullSize2;
-        double correctedIntersectSize = p.intersectSize() *1.0 / alpha / beta;
+        double correctedIntersectSize = intersectSize(sample1, sample2) *1.0 / alpha / beta;
         // sometimes goes to an impossible value
         int n = Math.min(fullSize1, fullSize2);
         correctedIntersectSize = Math.min(n, correctedIntersectSize);
@@ -58,6 +56,226 @@ public class SetOps {
         return correctedIntersectSize / (fullSize1 + fullSize2 - correctedIntersectSize);
     }
 
+    /**
+     * The number of distinct elements in both collections (a null in both
+     * counts as one), as SetPair.intersectSize() but without building either
+     * set.  See overlap() for how it is computed.
+     */
+    public static int intersectSize(Collection<String> strings1, Collection<String> strings2) {
+        return overlap(asList(strings1), asList(strings2), false);
+    }
+
+    /**
+     * The number of elements in both collections counted with multiplicity,
+     * i.e. the size of their multiset intersection.  Nulls are never in both.
+     */
+    public static int overlapCount(Collection<String> strings1, Collection<String> strings2) {
+        return overlap(asList(strings1), asList(strings2), true);
+    }
+
+    private static List<String> asList(Collection<String> strings) {
+        return strings instanceof List && strings instanceof RandomAccess ?
+            (List<String>) strings : new ArrayList<String>(strings);
+    }
+
+    // Below this many pairs of elements a nested loop beats hashing.
+    private static final int NESTED_LOOP_PAIRS = 64;
+
+    /**
+     * Counts the overlap of two lists by whichever is cheapest of: comparing
+     * every pair if both are tiny; merging them if both are sorted; or
+     * hashing the smaller into a per-thread scratch table and probing it with
+     * the larger.  Only the last allocates, and then only to grow the table.
+     */
+    private static int overlap(List<String> l1, List<String> l2, boolean multiset) {
+        List<String> small = l1.size() <= l2.size() ? l1 : l2;
+        List<String> large = small == l1 ? l2 : l1;
+        if (small.isEmpty()) {
+            return 0;
+        }
+        if ((long) small.size() * large.size() <= NESTED_LOOP_PAIRS) {
+            return nestedLoopOverlap(small, large, multiset);
+        }
+        if (isSorted(small) && isSorted(large)) {
+            return mergeOverlap(small, large, multiset);
+        }
+        return hashOverlap(small, large, multiset);
+    }
+
+    private static boolean equal(String x, String y) {
+        return x == null ? y == null : x.equals(y);
+    }
+
+    private static int nestedLoopOverlap(List<String> small, List<String> large, boolean multiset) {
+        int count = 0;
+        for (int ii = 0; ii < small.size(); ++ii) {
+            String x = small.get(ii);
+            if (multiset && x == null) {
+                continue;
+            }
+            // x is the rank-th copy of itself in small.
+            int rank = 0;
+            for (int jj = 0; jj < ii; ++jj) {
+                if (equal(x, small.get(jj))) {
+                    ++rank;
+                }
+            }
+            if (rank > 0 && !multiset) {
+                continue;
+            }
+            int copies = 0;
+            for (int jj = 0; jj < large.size() && copies <= rank; ++jj) {
+                if (equal(x, large.get(jj))) {
+                    ++copies;
+                }
+            }
+            if (copies > rank) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /** Whether a list is in ascending order and has no nulls. */
+    private static boolean isSorted(List<String> strings) {
+        String previous = strings.get(0);
+        if (previous == null) {
+            return false;
+        }
+        for (int ii = 1; ii < strings.size(); ++ii) {
+            String x = strings.get(ii);
+            if (x == null || previous.compareTo(x) > 0) {
+                return false;
+            }
+            previous = x;
+        }
+        return true;
+    }
+
+    private static int mergeOverlap(List<String> l1, List<String> l2, boolean multiset) {
+        int count = 0;
+        int ii = 0;
+        int jj = 0;
+        while (ii < l1.size() && jj < l2.size()) {
+            String x = l1.get(ii);
+            int c = x.compareTo(l2.get(jj));
+            if (c < 0) {
+                ++ii;
+            } else if (c > 0) {
+                ++jj;
+            } else {
+                ++count;
+                ++ii;
+                ++jj;
+                if (!multiset) {
+                    while (ii < l1.size() && x.equals(l1.get(ii))) {
+                        ++ii;
+                    }
+                    while (jj < l2.size() && x.equals(l2.get(jj))) {
+                        ++jj;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int hashOverlap(List<String> small, List<String> large, boolean multiset) {
+        ScratchTable table = ScratchTable.get(small.size());
+        for (int ii = 0; ii < small.size(); ++ii) {
+            String x = small.get(ii);
+            if (x != null || !multiset) {
+                table.increment(x);
+            }
+        }
+        int count = 0;
+        for (int ii = 0; ii < large.size(); ++ii) {
+            String x = large.get(ii);
+            if (x != null || !multiset) {
+                // Set semantics: each distinct element is found only once.
+                if (table.take(x, multiset ? 1 : Integer.MAX_VALUE)) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * An open-addressing table of string counts which is reused by each
+     * thread, so that hashOverlap() does not allocate.  Only the first
+     * capacity slots are used, so clearing it costs O(capacity) however large
+     * an earlier call made it.  Tables too large to be worth keeping are not
+     * reused.
+     */
+    private static class ScratchTable {
+        private static final int MAX_REUSED_CAPACITY = 1 << 16;
+        private static final Object NULL_KEY = new Object();
+        private static final ThreadLocal<ScratchTable> TABLES = new ThreadLocal<ScratchTable>();
+
+        private Object[] keys = new Object[0];
+        private int[] counts = new int[0];
+        private int mask;
+
+        /** An empty table with room for n keys. */
+        static ScratchTable get(int n) {
+            int capacity = Integer.highestOneBit(Math.max(8, 2 * n - 1)) << 1;
+            if (capacity > MAX_REUSED_CAPACITY) {
+                ScratchTable table = new ScratchTable();
+                table.reset(capacity);
+                return table;
+            }
+            ScratchTable table = TABLES.get();
+            if (table == null) {
+                table = new ScratchTable();
+                TABLES.set(table);
+            }
+            table.reset(capacity);
+            return table;
+        }
+
+        private void reset(int capacity) {
+            if (keys.length < capacity) {
+                keys = new Object[capacity];
+                counts = new int[capacity];
+            } else {
+                Arrays.fill(keys, 0, capacity, null);
+            }
+            mask = capacity - 1;
+        }
+
+        private int slot(Object key) {
+            int h = key.hashCode() * 0x9e3779b9;
+            int ii = (h ^ (h >>> 16)) & mask;
+            Object k;
+            while ((k = keys[ii]) != null && !k.equals(key)) {
+                ii = (ii + 1) & mask;
+            }
+            return ii;
+        }
+
+        void increment(String x) {
+            Object key = x == null ? NULL_KEY : x;
+            int ii = slot(key);
+            if (keys[ii] == null) {
+                keys[ii] = key;
+                counts[ii] = 0;
+            }
+            ++counts[ii];
+        }
+
+        /** Takes up to amount from the count of x; returns whether it was positive. */
+        boolean take(String x, int amount) {
+            Object key = x == null ? NULL_KEY : x;
+            int ii = slot(key);
+            if (keys[ii] == null || counts[ii] == 0) {
+                return false;
+            }
+            counts[ii] = Math.max(0, counts[ii] - amount);
+            return true;
+        }
+    }
+
     public static void main(String args[]) throws IOException {
         InputStreamReader converter = new InputStreamReader(System.in);
         BufferedReader in = new BufferedReader(converter);
@@ -0,0 +1,201 @@
+package com.facebook.hive.udf.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact serialization of the counts of a Counter<String>, for shipping
+ * partial histograms between tasks.
+ *
+ * The keys are written as UTF-8 in sorted order, each one as
+ * the length of the prefix it shares with the previous key, followed by the
+ * rest of its bytes, so that keys with common prefixes (URLs, paths, ids)
+ * cost little more than what differs between them.  Lengths and counts are
+ * unsigned varints.  Bodies larger than COMPRESS_THRESHOLD bytes are also
+ * deflated when that makes them smaller.
+ *
+ * The layout is a flag byte (RAW or DEFLATED), then for DEFLATED the varint
+ * length of the raw body and the deflated body, and for RAW the body itself:
+ *
+ *     varint n; n * (varint shared, varint suffix_length, suffix, varint count)
+ *
+ * Use a Reader to walk the entries of a serialized histogram one at a time.
+ */
+public class SortedCounts {
+    public static final int COMPRESS_THRESHOLD = 1024;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SortedCounts() {
+        // prevent instantiation
+    }
+
+    public static byte[] toBytes(Counter<String> counter) {
+        int n = counter.size();
+        String[] keys = counter.keySet().toArray(new String[n]);
+        Arrays.sort(keys);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 8 * n);
+        out.write(RAW);
+        writeVarint(out, n);
+        byte[] previous = new byte[0];
+        for (int ii = 0; ii < n; ++ii) {
+            byte[] key = keys[ii].getBytes(UTF8);
+            int shared = 0;
+            int limit = Math.min(key.length, previous.length);
+            while (shared < limit && key[shared] == previous[shared]) {
+                ++shared;
+            }
+            writeVarint(out, shared);
+            writeVarint(out, key.length - shared);
+            out.write(key, shared, key.length - shared);
+            writeVarint(out, counter.getCount(keys[ii]));
+            previous = key;
+        }
+        byte[] raw = out.toByteArray();
+        if (raw.length <= COMPRESS_THRESHOLD) {
+            return raw;
+        }
+        return deflate(raw);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw, 1, raw.length - 1);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            out.write(DEFLATED);
+            writeVarint(out, raw.length - 1);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+                if (out.size() >= raw.length) {
+                    return raw;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decodes the entries of a serialized histogram in key order:
+     *
+     *     SortedCounts.Reader reader = new SortedCounts.Reader(bytes, 0, length);
+     *     while (reader.next()) {
+     *         counter.increment(reader.getKey(), reader.getCount());
+     *     }
+     *
+     * Throws an IllegalArgumentException if the bytes are not a histogram.
+     */
+    public static class Reader {
+        private byte[] bytes;
+        private int position;
+        private int end;
+        private int remaining;
+
+        private byte[] key = new byte[64];
+        private int key_length = 0;
+        private int count;
+
+        public Reader(byte[] bytes, int offset, int length) {
+            if (length < 2) {
+                throw new IllegalArgumentException("Not a serialized histogram.");
+            }
+            this.bytes = bytes;
+            this.position = offset + 1;
+            this.end = offset + length;
+            if (bytes[offset] == DEFLATED) {
+                inflate();
+            } else if (bytes[offset] != RAW) {
+                throw new IllegalArgumentException("Not a serialized histogram.");
+            }
+            remaining = readVarint();
+        }
+
+        private void inflate() {
+            int raw_length = readVarint();
+            byte[] raw = new byte[raw_length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(bytes, position, end - position);
+                if (inflater.inflate(raw) != raw_length || !inflater.finished()) {
+                    throw new IllegalArgumentException("Not a serialized histogram.");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Not a serialized histogram.");
+            } finally {
+                inflater.end();
+            }
+            bytes = raw;
+            position = 0;
+            end = raw_length;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position >= end) {
+                    throw new IllegalArgumentException("Not a serialized histogram.");
+                }
+                byte b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Not a serialized histogram.");
+        }
+
+        /** The number of entries not yet read. */
+        public int remaining() {
+            return remaining;
+        }
+
+        /** Advance to the next entry, returning false when there are none left. */
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            int shared = readVarint();
+            int suffix = readVarint();
+            if (shared > key_length || suffix < 0 || suffix > end - position) {
+                throw new IllegalArgumentException("Not a serialized histogram.");
+            }
+            key_length = shared + suffix;
+            if (key_length > key.length) {
+                key = Arrays.copyOf(key, Math.max(key_length, 2 * key.length));
+            }
+            System.arraycopy(bytes, position, key, shared, suffix);
+            position += suffix;
+            count = readVarint();
+            --remaining;
+            return true;
+        }
+
+        public String getKey() {
+            return new String(key, 0, key_length, UTF8);
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects items into sorted runs and k-way merges them, optionally keeping
+ * only the first limit items in order.
+ *
+ * Single items are appended to a pending buffer, which is sorted into a run
+ * by sort(); runs that are already sorted (e.g. sorted partial aggregations)
+ * are added with addRun() as they are.  merge() combines the runs with a heap
+ * of run heads in O(n log k) for k runs, so sorted partials are never sorted
+ * again.
+ *
+ * With a limit, runs are cut to limit items, the pending buffer is sorted and
+ * cut whenever it reaches twice the limit, and the runs are merged down to
+ * one whenever they hold more than twice the limit, so memory stays O(limit)
+ * and the result is the limit smallest items.
+ */
+public class SortedRuns<E> {
+    private final Comparator<? super E> comparator;
+    private final int limit;
+
+    private ArrayList<E> pending = new ArrayList<E>();
+    private final ArrayList<List<E>> runs = new ArrayList<List<E>>();
+    private long run_items = 0;
+
+    public SortedRuns(Comparator<? super E> comparator, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The limit must be positive.");
+        }
+        this.comparator = comparator;
+        this.limit = limit;
+    }
+
+    /** Collect everything. */
+    public SortedRuns(Comparator<? super E> comparator) {
+        this(comparator, Integer.MAX_VALUE);
+    }
+
+    public void add(E item) {
+        pending.add(item);
+        if (pending.size() >= 2L * limit) {
+            sortPending();
+        }
+    }
+
+    /** Add items sorted by the comparator. */
+    public void addRun(List<E> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        if (run.size() > limit) {
+            run = new ArrayList<E>(run.subList(0, limit));
+        }
+        runs.add(run);
+        run_items += run.size();
+        if (limit != Integer.MAX_VALUE && run_items > 2L * limit) {
+            List<E> merged = merge(runs, limit);
+            runs.clear();
+            runs.add(merged);
+            run_items = merged.size();
+        }
+    }
+
+    private void sortPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Collections.sort(pending, comparator);
+        ArrayList<E> run = pending;
+        pending = new ArrayList<E>();
+        addRun(run);
+    }
+
+    /** Sort the pending items into a run. */
+    public void sort() {
+        sortPending();
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty() && runs.isEmpty();
+    }
+
+    /** All the items, or the first limit of them, in order. */
+    public List<E> merge() {
+        sortPending();
+        if (runs.size() == 1) {
+            return runs.get(0);
+        }
+        List<E> merged = merge(runs, limit);
+        runs.clear();
+        if (!merged.isEmpty()) {
+            runs.add(merged);
+        }
+        run_items = merged.size();
+        return merged;
+    }
+
+    public void clear() {
+        pending = new ArrayList<E>();
+        runs.clear();
+        run_items = 0;
+    }
+
+    private static class Head<E> {
+        List<E> run;
+        int position;
+        E item;
+    }
+
+    private List<E> merge(List<List<E>> runs, int limit) {
+        long total = 0;
+        for (List<E> run : runs) {
+            total += run.size();
+        }
+        ArrayList<E> result = new ArrayList<E>((int) Math.min(total, limit));
+        PriorityQueue<Head<E>> heads = new PriorityQueue<Head<E>>(
+            Math.max(runs.size(), 1),
+            new Comparator<Head<E>>() {
+                public int compare(Head<E> a, Head<E> b) {
+                    return comparator.compare(a.item, b.item);
+                }
+            });
+        for (List<E> run : runs) {
+            if (!run.isEmpty()) {
+                Head<E> head = new Head<E>();
+                head.run = run;
+                head.item = run.get(0);
+                heads.add(head);
+            }
+        }
+        while (result.size() < limit && !heads.isEmpty()) {
+            Head<E> head = heads.poll();
+            result.add(head.item);
+            if (++head.position < head.run.size()) {
+                head.item = head.run.get(head.position);
+                heads.add(head);
+            }
+        }
+        return result;
+    }
+}
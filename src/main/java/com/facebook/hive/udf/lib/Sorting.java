@@ -0,0 +1,178 @@
+package com.facebook.hive.udf.lib;
+
+/**
+ * In-place sorts of a primitive key array together with a parallel array of
+ * values, so that aggregation state kept as primitive arrays can be ordered
+ * without boxing each entry.  The sorts are not stable.
+ */
+public class Sorting {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /** Sort keys[from, to) in ascending order, permuting values alongside. */
+    public static void sortByKey(double[] keys, double[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int middle = (from + to) >>> 1;
+            // Median of three, moved to keys[from].
+            if (keys[middle] < keys[from]) swap(keys, values, middle, from);
+            if (keys[to - 1] < keys[from]) swap(keys, values, to - 1, from);
+            if (keys[to - 1] < keys[middle]) swap(keys, values, to - 1, middle);
+            swap(keys, values, from, middle);
+            double pivot = keys[from];
+
+            int ii = from + 1;
+            int jj = to - 1;
+            while (true) {
+                while (keys[ii] < pivot) ++ii;
+                while (pivot < keys[jj]) --jj;
+                if (ii >= jj) {
+                    break;
+                }
+                swap(keys, values, ii++, jj--);
+            }
+            swap(keys, values, from, jj);
+
+            // Recurse into the smaller side to bound the stack depth.
+            if (jj - from < to - jj - 1) {
+                sortByKey(keys, values, from, jj);
+                from = jj + 1;
+            } else {
+                sortByKey(keys, values, jj + 1, to);
+                to = jj;
+            }
+        }
+
+        for (int ii = from + 1; ii < to; ++ii) {
+            double key = keys[ii];
+            double value = values[ii];
+            int jj = ii - 1;
+            while (jj >= from && key < keys[jj]) {
+                keys[jj + 1] = keys[jj];
+                values[jj + 1] = values[jj];
+                --jj;
+            }
+            keys[jj + 1] = key;
+            values[jj + 1] = value;
+        }
+    }
+
+    private static void swap(double[] keys, double[] values, int a, int b) {
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        double value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    /** Sort keys[from, to) in ascending order, permuting values alongside. */
+    public static void sortByKey(long[] keys, double[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int middle = (from + to) >>> 1;
+            // Median of three, moved to keys[from].
+            if (keys[middle] < keys[from]) swap(keys, values, middle, from);
+            if (keys[to - 1] < keys[from]) swap(keys, values, to - 1, from);
+            if (keys[to - 1] < keys[middle]) swap(keys, values, to - 1, middle);
+            swap(keys, values, from, middle);
+            long pivot = keys[from];
+
+            int ii = from + 1;
+            int jj = to - 1;
+            while (true) {
+                while (keys[ii] < pivot) ++ii;
+                while (pivot < keys[jj]) --jj;
+                if (ii >= jj) {
+                    break;
+                }
+                swap(keys, values, ii++, jj--);
+            }
+            swap(keys, values, from, jj);
+
+            // Recurse into the smaller side to bound the stack depth.
+            if (jj - from < to - jj - 1) {
+                sortByKey(keys, values, from, jj);
+                from = jj + 1;
+            } else {
+                sortByKey(keys, values, jj + 1, to);
+                to = jj;
+            }
+        }
+
+        for (int ii = from + 1; ii < to; ++ii) {
+            long key = keys[ii];
+            double value = values[ii];
+            int jj = ii - 1;
+            while (jj >= from && key < keys[jj]) {
+                keys[jj + 1] = keys[jj];
+                values[jj + 1] = values[jj];
+                --jj;
+            }
+            keys[jj + 1] = key;
+            values[jj + 1] = value;
+        }
+    }
+
+    private static void swap(long[] keys, double[] values, int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        double value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    /** Sort keys[from, to) in ascending order, permuting values alongside. */
+    public static void sortByKey(long[] keys, int[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int middle = (from + to) >>> 1;
+            // Median of three, moved to keys[from].
+            if (keys[middle] < keys[from]) swap(keys, values, middle, from);
+            if (keys[to - 1] < keys[from]) swap(keys, values, to - 1, from);
+            if (keys[to - 1] < keys[middle]) swap(keys, values, to - 1, middle);
+            swap(keys, values, from, middle);
+            long pivot = keys[from];
+
+            int ii = from + 1;
+            int jj = to - 1;
+            while (true) {
+                while (keys[ii] < pivot) ++ii;
+                while (pivot < keys[jj]) --jj;
+                if (ii >= jj) {
+                    break;
+                }
+                swap(keys, values, ii++, jj--);
+            }
+            swap(keys, values, from, jj);
+
+            // Recurse into the smaller side to bound the stack depth.
+            if (jj - from < to - jj - 1) {
+                sortByKey(keys, values, from, jj);
+                from = jj + 1;
+            } else {
+                sortByKey(keys, values, jj + 1, to);
+                to = jj;
+            }
+        }
+
+        for (int ii = from + 1; ii < to; ++ii) {
+            long key = keys[ii];
+            int value = values[ii];
+            int jj = ii - 1;
+            while (jj >= from && key < keys[jj]) {
+                keys[jj + 1] = keys[jj];
+                values[jj + 1] = values[jj];
+                --jj;
+            }
+            keys[jj + 1] = key;
+            values[jj + 1] = value;
+        }
+    }
+
+    private static void swap(long[] keys, int[] values, int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+}
@@ -0,0 +1,356 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A Counter with a bounded number of counters for approximate heavy hitters,
+ * using the Space-Saving algorithm (Metwally, Agrawal and El Abbadi,
+ * "Efficient computation of frequent and top-k elements in data streams").
+ *
+ * At most capacity items are counted.  When a new item arrives and all
+ * counters are taken, the item with the smallest count is evicted and the new
+ * item inherits its count, which is recorded as the new item's error.  For
+ * every item, getCount() - getError() <= true count <= getCount(), the error
+ * is at most getTotalCount() / capacity, and every item whose true count
+ * exceeds getTotalCount() / capacity is counted.
+ *
+ * Two summaries merge as described by Agarwal et al. in "Mergeable
+ * summaries": an item missing from one summary is charged that summary's
+ * minimum count (if it is full), and only the capacity largest counts are
+ * kept, so the guarantees above hold for the combined stream.
+ *
+ * The counters form a binary min-heap on primitive counts.  Items are found
+ * through an open-addressing table of heap slots, probed as in Counter, and
+ * each slot's hash and position in the table are kept in parallel primitive
+ * arrays, so an increment costs O(log capacity) and allocates nothing.
+ *
+ * find(), insert() and the first merge() take the hash and the test of
+ * equality from the caller, so that items can be looked up in another form
+ * than they are stored in and only copied when they are counted.  A summary
+ * must always be given the same kind of hash.  The other methods use
+ * hashCode() and equals().
+ */
+public class SpaceSaving<E> {
+    /** Whether probe, in whatever form it is looked up in, is item. */
+    public interface Matcher {
+        boolean matches(Object probe, Object item);
+    }
+
+    private static final Matcher EQUALS = new Matcher() {
+        @Override
+        public boolean matches(Object probe, Object item) {
+            return probe == item || probe.equals(item);
+        }
+    };
+
+    private final int capacity;
+    private final Object[] items;
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    // The position in table of each heap slot, and for each position of the
+    // table the heap slot plus one, or 0 if it is empty.  The table is at
+    // most half full, so it never grows.
+    private final int[] positions;
+    private final int[] table;
+    private final int mask;
+    private int size = 0;
+    private long totalCount = 0;
+
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("The capacity must be positive and at most 2^29.");
+        }
+        this.capacity = capacity;
+        this.items = new Object[capacity];
+        this.hashes = new int[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new int[capacity];
+        this.table = new int[Integer.highestOneBit(2 * capacity - 1) << 1];
+        this.mask = table.length - 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * The smallest count if every counter is taken, and otherwise 0.  Any item
+     * which is not counted occurred at most this many times.
+     */
+    public long getMinCount() {
+        return size == capacity ? counts[0] : 0;
+    }
+
+    public void increment(E obj) {
+        increment(obj, 1);
+    }
+
+    public void increment(E obj, long amount) {
+        int slot = find(obj, obj.hashCode(), EQUALS);
+        if (slot >= 0) {
+            incrementSlot(slot, amount);
+        } else {
+            insert(obj, obj.hashCode(), amount);
+        }
+    }
+
+    /** The estimated count of obj, or getMinCount() if it is not counted. */
+    public long getCount(E obj) {
+        int slot = find(obj, obj.hashCode(), EQUALS);
+        return slot < 0 ? getMinCount() : counts[slot];
+    }
+
+    /** The largest amount by which getCount() may exceed the true count. */
+    public long getError(E obj) {
+        int slot = find(obj, obj.hashCode(), EQUALS);
+        return slot < 0 ? getMinCount() : errors[slot];
+    }
+
+    /**
+     * The slot of the counted item which probe, of the given hash, matches,
+     * or -1 if it is not counted.  The slot is only valid until the summary
+     * next changes.
+     */
+    public int find(Object probe, int hash, Matcher matcher) {
+        int index;
+        for (int ii = Counter.spread(hash) & mask; (index = table[ii]) != 0; ii = (ii + 1) & mask) {
+            if (hashes[index - 1] == hash && matcher.matches(probe, items[index - 1])) {
+                return index - 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Count the item in a slot returned by find() amount more times. */
+    public void incrementSlot(int slot, long amount) {
+        counts[slot] += amount;
+        siftDown(slot);
+        totalCount += amount;
+    }
+
+    /**
+     * Count an item which find() did not find amount times, evicting the item
+     * with the smallest count if every counter is taken.
+     */
+    public void insert(Object item, int hash, long amount) {
+        if (size < capacity) {
+            items[size] = item;
+            hashes[size] = hash;
+            counts[size] = amount;
+            errors[size] = 0;
+            addToTable(size);
+            siftUp(size++);
+        } else {
+            // Replace the item with the smallest count.
+            removeFromTable(positions[0]);
+            items[0] = item;
+            hashes[0] = hash;
+            errors[0] = counts[0];
+            counts[0] += amount;
+            addToTable(0);
+            siftDown(0);
+        }
+        totalCount += amount;
+    }
+
+    private void addToTable(int slot) {
+        int ii = Counter.spread(hashes[slot]) & mask;
+        while (table[ii] != 0) {
+            ii = (ii + 1) & mask;
+        }
+        table[ii] = slot + 1;
+        positions[slot] = ii;
+    }
+
+    /**
+     * Empty a position of the table, moving back the later entries of its run
+     * which could otherwise no longer be found.
+     */
+    private void removeFromTable(int hole) {
+        table[hole] = 0;
+        int index;
+        for (int ii = (hole + 1) & mask; (index = table[ii]) != 0; ii = (ii + 1) & mask) {
+            int home = Counter.spread(hashes[index - 1]) & mask;
+            // An entry whose home is cyclically in (hole, ii] stays put.
+            boolean stays = hole < ii ? hole < home && home <= ii : hole < home || home <= ii;
+            if (!stays) {
+                table[hole] = index;
+                positions[index - 1] = hole;
+                table[ii] = 0;
+                hole = ii;
+            }
+        }
+    }
+
+    private void siftUp(int ii) {
+        while (ii > 0) {
+            int parent = (ii - 1) >>> 1;
+            if (counts[parent] <= counts[ii]) {
+                break;
+            }
+            swap(ii, parent);
+            ii = parent;
+        }
+    }
+
+    private void siftDown(int ii) {
+        while (2 * ii + 1 < size) {
+            int child = 2 * ii + 1;
+            if (child + 1 < size && counts[child + 1] < counts[child]) {
+                ++child;
+            }
+            if (counts[ii] <= counts[child]) {
+                break;
+            }
+            swap(ii, child);
+            ii = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        Object item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+        int hash = hashes[a];
+        hashes[a] = hashes[b];
+        hashes[b] = hash;
+        long count = counts[a];
+        counts[a] = counts[b];
+        counts[b] = count;
+        long error = errors[a];
+        errors[a] = errors[b];
+        errors[b] = error;
+        int position = positions[a];
+        positions[a] = positions[b];
+        positions[b] = position;
+        table[positions[a]] = a + 1;
+        table[positions[b]] = b + 1;
+    }
+
+    /**
+     * Merge in another summary given as n parallel items, hashes, counts and
+     * errors, with the other summary's minimum count and total count.
+     * matcher compares the other items with the items of this summary.
+     */
+    public void merge(Object[] other_items, int[] other_hashes, long[] other_counts,
+                      long[] other_errors, int n, long other_min_count,
+                      long other_total_count, Matcher matcher) {
+        long min_count = getMinCount();
+        int merged_size = size + n;
+        Object[] merged_items = new Object[merged_size];
+        int[] merged_hashes = new int[merged_size];
+        long[] merged_counts = new long[merged_size];
+        long[] merged_errors = new long[merged_size];
+
+        // Items of this summary, charged the other's minimum unless present.
+        for (int ii = 0; ii < size; ++ii) {
+            merged_items[ii] = items[ii];
+            merged_hashes[ii] = hashes[ii];
+            merged_counts[ii] = counts[ii] + other_min_count;
+            merged_errors[ii] = errors[ii] + other_min_count;
+        }
+        int out = size;
+        for (int ii = 0; ii < n; ++ii) {
+            int slot = find(other_items[ii], other_hashes[ii], matcher);
+            if (slot >= 0) {
+                // Undo the charge made above.
+                merged_counts[slot] += other_counts[ii] - other_min_count;
+                merged_errors[slot] += other_errors[ii] - other_min_count;
+            } else {
+                merged_items[out] = other_items[ii];
+                merged_hashes[out] = other_hashes[ii];
+                merged_counts[out] = other_counts[ii] + min_count;
+                merged_errors[out] = other_errors[ii] + min_count;
+                ++out;
+            }
+        }
+
+        // Keep the capacity largest counts.
+        Integer[] order = order(merged_counts, out);
+        size = Math.min(out, capacity);
+        for (int ii = 0; ii < size; ++ii) {
+            int jj = order[ii];
+            items[ii] = merged_items[jj];
+            hashes[ii] = merged_hashes[jj];
+            counts[ii] = merged_counts[jj];
+            errors[ii] = merged_errors[jj];
+        }
+        Arrays.fill(items, size, capacity, null);
+        // Descending order is a valid max-heap; reverse it into a min-heap.
+        for (int ii = 0, jj = size - 1; ii < jj; ++ii, --jj) {
+            Object item = items[ii];
+            items[ii] = items[jj];
+            items[jj] = item;
+            int hash = hashes[ii];
+            hashes[ii] = hashes[jj];
+            hashes[jj] = hash;
+            long count = counts[ii];
+            counts[ii] = counts[jj];
+            counts[jj] = count;
+            long error = errors[ii];
+            errors[ii] = errors[jj];
+            errors[jj] = error;
+        }
+        Arrays.fill(table, 0);
+        for (int ii = 0; ii < size; ++ii) {
+            addToTable(ii);
+        }
+        totalCount += other_total_count;
+    }
+
+    public void merge(SpaceSaving<E> other) {
+        merge(other.items, other.hashes, other.counts, other.errors, other.size,
+              other.getMinCount(), other.totalCount, EQUALS);
+    }
+
+    /** The indices of counts[0, n), ordered by descending count. */
+    private static Integer[] order(final long[] counts, int n) {
+        Integer[] order = new Integer[n];
+        for (int ii = 0; ii < n; ++ii) {
+            order[ii] = ii;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return counts[b] < counts[a] ? -1 : (counts[b] == counts[a] ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    /** The counted items in [0, size()), in no particular order. */
+    public Object[] getItems() {
+        return items;
+    }
+
+    /** The counts, parallel to getItems(). */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /** The errors, parallel to getItems(). */
+    public long[] getErrors() {
+        return errors;
+    }
+
+    /** The indices into getItems() of the k largest counts, largest first. */
+    public int[] top(int k) {
+        Integer[] order = order(counts, size);
+        int[] top = new int[Math.min(k, size)];
+        for (int ii = 0; ii < top.length; ++ii) {
+            top[ii] = order[ii];
+        }
+        return top;
+    }
+}
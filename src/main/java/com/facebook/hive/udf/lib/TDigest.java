@@ -0,0 +1,276 @@
+package com.facebook.hive.udf.lib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A mergeable t-digest (Dunning and Ertl, "Computing extremely accurate
+ * quantiles using t-digests") for approximate weighted percentiles.
+ *
+ * Incoming values are buffered and periodically merged into a sorted list of
+ * (mean, weight) centroids.  Adjacent centroids are combined as long as the
+ * result spans at most one unit of the k1 scale function
+ *
+ *   k(q) = compression / (2 pi) * asin(2q - 1)
+ *
+ * which keeps centroids small near the tails and bounds their number by
+ * compression + 1.  Centroids with equal means are always combined, and as
+ * long as there are no more than compression distinct values no other
+ * combining happens, so small domains are summarized exactly.
+ *
+ * Percentiles are interpolated between centroid midpoints exactly as
+ * UDAFWeightedPercentile interpolates between values, so on an exact digest
+ * the two agree.  Below the first midpoint and above the last the
+ * interpolation runs to the smallest and largest values seen, which coincide
+ * with the end centroids when those hold a single value.
+ *
+ * The binary form is
+ *
+ *   [compression: double, n: int, min: double, max: double,
+ *    means: double * n, weights: double * n]
+ *
+ * with the means in ascending order.
+ */
+public class TDigest {
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final double compression;
+    private final int max_centroids;
+    private final int buffer_size;
+
+    // Centroids occupy [0, size), sorted by mean; buffered values follow them
+    // in [size, size + buffered).
+    private final double[] means;
+    private final double[] weights;
+    private int size = 0;
+    private int buffered = 0;
+    private double total = 0.0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // Cumulative midpoints of the centroids, for percentile lookups.
+    private double[] midpoints;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression) {
+        if (!(compression >= 1 && compression <= 100000)) {
+            throw new IllegalArgumentException("Compression must be in [1, 100000].");
+        }
+        this.compression = compression;
+        this.max_centroids = (int) Math.ceil(compression) + 1;
+        this.buffer_size = 5 * max_centroids;
+        this.means = new double[max_centroids + buffer_size];
+        this.weights = new double[max_centroids + buffer_size];
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    public double getTotalWeight() {
+        return total;
+    }
+
+    /** The number of centroids once the buffer has been merged. */
+    public int size() {
+        compress();
+        return size;
+    }
+
+    /** Add a value with the given weight, which must be non-negative. */
+    public void add(double x, double w) {
+        if (w < 0) {
+            throw new IllegalArgumentException("Weights must be non-negative.");
+        }
+        if (w == 0 || Double.isNaN(x)) {
+            return;
+        }
+        if (buffered == buffer_size) {
+            compress();
+        }
+        means[size + buffered] = x;
+        weights[size + buffered] = w;
+        ++buffered;
+        total += w;
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+        midpoints = null;
+    }
+
+    /** Merge in all the centroids of another digest. */
+    public void add(TDigest other) {
+        other.compress();
+        for (int ii = 0; ii < other.size; ++ii) {
+            add(other.means[ii], other.weights[ii]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    /** Merge the buffered values into the centroids. */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int n = size + buffered;
+        Sorting.sortByKey(means, weights, 0, n);
+
+        int distinct = 1;
+        for (int ii = 1; ii < n && distinct <= max_centroids - 1; ++ii) {
+            if (means[ii] != means[ii - 1]) {
+                ++distinct;
+            }
+        }
+        boolean exact = distinct <= max_centroids - 1;
+
+        int out = 0;
+        double mean = means[0];
+        double weight = weights[0];
+        double weight_so_far = 0.0;
+        double k_left = scale(0.0);
+        for (int ii = 1; ii < n; ++ii) {
+            boolean combine;
+            if (means[ii] == mean) {
+                combine = true;
+            } else if (exact) {
+                combine = false;
+            } else {
+                double q_right = Math.min(1.0, (weight_so_far + weight + weights[ii]) / total);
+                combine = scale(q_right) - k_left <= 1.0;
+            }
+
+            if (combine) {
+                weight += weights[ii];
+                mean += (means[ii] - mean) * weights[ii] / weight;
+            } else {
+                means[out] = mean;
+                weights[out] = weight;
+                ++out;
+                weight_so_far += weight;
+                k_left = scale(Math.min(1.0, weight_so_far / total));
+                mean = means[ii];
+                weight = weights[ii];
+            }
+        }
+        means[out] = mean;
+        weights[out] = weight;
+        size = out + 1;
+        buffered = 0;
+    }
+
+    /**
+     * The weighted percentiles at each of qs, which must be in [0, 1].  Uses
+     * the interpolation described under "Weighted percentile" at
+     * http://en.wikipedia.org/wiki/Percentile with each centroid standing in
+     * for its values.  Returns NaN for an empty digest.
+     */
+    public double[] quantiles(double[] qs) {
+        compress();
+        double[] result = new double[qs.length];
+        if (size == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+        if (midpoints == null || midpoints.length < size) {
+            midpoints = new double[size];
+        }
+        double running = 0.0;
+        for (int ii = 0; ii < size; ++ii) {
+            midpoints[ii] = running + weights[ii] / 2;
+            running += weights[ii];
+        }
+
+        for (int ii = 0; ii < qs.length; ++ii) {
+            result[ii] = interpolate(total * qs[ii]);
+        }
+        return result;
+    }
+
+    public double quantile(double q) {
+        return quantiles(new double[] { q })[0];
+    }
+
+    /**
+     * Interpolate the value at the given position, a weight in [0, total],
+     * from the cumulative midpoints.
+     */
+    private double interpolate(double position) {
+        // Find the first k with midpoints[k] >= position.
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (midpoints[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int k = lo;
+        if (k == size) {
+            double span = total - midpoints[size - 1];
+            return means[size - 1] +
+                (position - midpoints[size - 1]) / span * (max - means[size - 1]);
+        }
+        if (midpoints[k] == position) {
+            return means[k];
+        }
+        if (k == 0) {
+            return min + position / midpoints[0] * (means[0] - min);
+        }
+        return means[k - 1] + (position - midpoints[k - 1]) /
+            (midpoints[k] - midpoints[k - 1]) * (means[k] - means[k - 1]);
+    }
+
+    public byte[] toBytes() {
+        compress();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + 16 + 16 * size);
+        buffer.putDouble(compression);
+        buffer.putInt(size);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        for (int ii = 0; ii < size; ++ii) {
+            buffer.putDouble(means[ii]);
+        }
+        for (int ii = 0; ii < size; ++ii) {
+            buffer.putDouble(weights[ii]);
+        }
+        return buffer.array();
+    }
+
+    /** The compression recorded in a serialized digest. */
+    public static double compressionOf(byte[] bytes, int offset, int length) {
+        return ByteBuffer.wrap(bytes, offset, length).getDouble();
+    }
+
+    /** Merge in the centroids of a serialized digest without decoding it. */
+    public void addBytes(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        buffer.getDouble();
+        int n = buffer.getInt();
+        double other_min = buffer.getDouble();
+        double other_max = buffer.getDouble();
+        int means_at = buffer.position();
+        int weights_at = means_at + 8 * n;
+        for (int ii = 0; ii < n; ++ii) {
+            add(buffer.getDouble(means_at + 8 * ii), buffer.getDouble(weights_at + 8 * ii));
+        }
+        if (n > 0) {
+            min = Math.min(min, other_min);
+            max = Math.max(max, other_max);
+        }
+    }
+
+    public static TDigest fromBytes(byte[] bytes, int offset, int length) {
+        TDigest digest = new TDigest(compressionOf(bytes, offset, length));
+        digest.addBytes(bytes, offset, length);
+        return digest;
+    }
+}
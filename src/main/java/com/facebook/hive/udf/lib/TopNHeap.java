@@ -0,0 +1,180 @@
+package com.facebook.hive.udf.lib;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the N keys with the highest scores seen so far.  The keys are held in
+ * a binary min-heap on primitive double scores with a parallel array of keys,
+ * so each offer costs O(log N) and no per-entry objects are allocated.  Among
+ * keys with equal scores the ones offered first are kept, unless the heap is
+ * given a comparator on keys, in which case ties go to the smaller keys and
+ * the result does not depend on the order of the offers.  NaN scores are
+ * ignored.
+ *
+ * The arrays start small and double as entries arrive, up to N, so that
+ * many small groups with a large N do not each hold N slots.
+ *
+ * sort() orders the entries by descending score in place so that they can be
+ * read with getKeys() and getScores(); the heap cannot be offered to after
+ * sorting until clear() is called.
+ */
+public class TopNHeap<K> {
+    private static final int MIN_CAPACITY = 16;
+
+    private final int N;
+    private double[] scores;
+    private Object[] keys;
+    private final Comparator<? super K> ties;
+    private int size = 0;
+    private boolean sorted = false;
+
+    public TopNHeap(int N) {
+        this(N, null);
+    }
+
+    public TopNHeap(int N, Comparator<? super K> ties) {
+        if (N < 0) {
+            throw new IllegalArgumentException("N must be non-negative.");
+        }
+        this.N = N;
+        this.scores = new double[Math.min(N, MIN_CAPACITY)];
+        this.keys = new Object[scores.length];
+        this.ties = ties;
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Offer a key with the given score.  Returns true if the key is now among
+     * the top N.
+     */
+    public boolean offer(K key, double score) {
+        if (sorted) {
+            throw new IllegalStateException("The heap has been sorted.");
+        }
+        if (Double.isNaN(score)) {
+            return false;
+        }
+        if (size < N) {
+            if (size == keys.length) {
+                grow();
+            }
+            siftUp(size++, key, score);
+            return true;
+        }
+        if (N == 0 || !below(scores[0], keys[0], score, key)) {
+            return false;
+        }
+        siftDown(0, size, key, score);
+        return true;
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min(N, 2L * keys.length);
+        scores = Arrays.copyOf(scores, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+    }
+
+    /**
+     * Whether an offer with the given score could be accepted, depending on
+     * its key; lets callers skip building keys which are sure to be rejected.
+     */
+    public boolean accepts(double score) {
+        if (sorted || Double.isNaN(score) || N == 0) {
+            return false;
+        }
+        return size < N || score > scores[0] ||
+            (ties != null && score == scores[0]);
+    }
+
+    /** Whether (a_score, a_key) ranks strictly below (b_score, b_key). */
+    @SuppressWarnings("unchecked")
+    private boolean below(double a_score, Object a_key,
+                          double b_score, Object b_key) {
+        if (a_score != b_score) {
+            return a_score < b_score;
+        }
+        return ties != null && ties.compare((K) a_key, (K) b_key) > 0;
+    }
+
+    /** The lowest score in the heap; only meaningful if size() > 0. */
+    public double minScore() {
+        return scores[0];
+    }
+
+    private void siftUp(int ii, Object key, double score) {
+        while (ii > 0) {
+            int parent = (ii - 1) >>> 1;
+            if (!below(score, key, scores[parent], keys[parent])) {
+                break;
+            }
+            scores[ii] = scores[parent];
+            keys[ii] = keys[parent];
+            ii = parent;
+        }
+        scores[ii] = score;
+        keys[ii] = key;
+    }
+
+    /** Place key at ii, moving it down the heap of the given size. */
+    private void siftDown(int ii, int n, Object key, double score) {
+        int half = n >>> 1;
+        while (ii < half) {
+            int child = 2 * ii + 1;
+            if (child + 1 < n &&
+                below(scores[child + 1], keys[child + 1], scores[child], keys[child])) {
+                ++child;
+            }
+            if (!below(scores[child], keys[child], score, key)) {
+                break;
+            }
+            scores[ii] = scores[child];
+            keys[ii] = keys[child];
+            ii = child;
+        }
+        scores[ii] = score;
+        keys[ii] = key;
+    }
+
+    /** Order [0, size()) of getKeys() and getScores() by descending score. */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        // Heap sort: repeatedly move the minimum to the end.
+        for (int end = size - 1; end > 0; --end) {
+            double score = scores[end];
+            Object key = keys[end];
+            scores[end] = scores[0];
+            keys[end] = keys[0];
+            siftDown(0, end, key, score);
+        }
+        sorted = true;
+    }
+
+    /**
+     * The keys, in [0, size()).  In heap order, or by descending score once
+     * sorted.
+     */
+    public Object[] getKeys() {
+        return keys;
+    }
+
+    /** The scores, parallel to getKeys(). */
+    public double[] getScores() {
+        return scores;
+    }
+}